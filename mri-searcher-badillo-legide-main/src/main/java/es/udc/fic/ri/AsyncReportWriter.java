@@ -0,0 +1,101 @@
+package es.udc.fic.ri;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Escribe los informes de la evaluación (consola y .txt) desde un thread aparte, con un único BufferedWriter
+ * para toda la ejecución. Los bloques se escriben en el orden en que se envían; si el thread se queda atrás,
+ * write espera a que haya sitio en la cola.
+ */
+public class AsyncReportWriter implements Closeable {
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    //Bloque de texto para la consola y para el fichero
+    private static final class Chunk {
+        private final CharSequence console, txt;
+
+        private Chunk(CharSequence console, CharSequence txt) {
+            this.console = console;
+            this.txt = txt;
+        }
+    }
+
+    private static final Chunk END = new Chunk("", "");
+
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BufferedWriter writer;
+    private final Thread thread;
+    private volatile IOException error;
+
+    //El fichero se abre en modo append y con la codificación por defecto, como hacía FileWriter
+    public AsyncReportWriter(Path txtFile) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(txtFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), Charset.defaultCharset()), BUFFER_SIZE);
+        this.thread = new Thread(this::drain, "report-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void drain() {
+        try {
+            for (Chunk chunk = queue.take(); chunk != END; chunk = queue.take()) {
+                if (error != null) {
+                    continue; //se vacía la cola para no bloquear a quien escribe
+                }
+                try {
+                    System.out.print(chunk.console);
+                    writer.append(chunk.txt);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void write(CharSequence console, CharSequence txt) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            queue.put(new Chunk(console, txt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Escritura del informe interrumpida", e);
+        }
+    }
+
+    //Línea que va a la consola y al fichero
+    public void writeLine(String line) throws IOException {
+        write(line + System.lineSeparator(), line + "\n");
+    }
+
+    //Espera a que se escriba todo lo enviado
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Escritura del informe interrumpida", e);
+        } finally {
+            writer.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
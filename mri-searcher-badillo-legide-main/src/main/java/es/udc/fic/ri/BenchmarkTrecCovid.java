@@ -0,0 +1,282 @@
+package es.udc.fic.ri;
+
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rendimiento de las búsquedas de las queries de TREC-COVID: tras unas iteraciones de calentamiento, mide la
+ * latencia de cada búsqueda (p50/p95/p99/max) y las queries por segundo con N clientes a la vez, con BM25 y con
+ * Jelinek-Mercer. Los resultados se guardan en JSON para comparar entre cambios de analizador o de índice.
+ */
+public class BenchmarkTrecCovid {
+
+    private static final String OUTPUT_DIR = "src/main/resources/benchmark/";
+
+    private static void validateIndexPath(String indexPath){
+        if(!Files.exists(Paths.get(indexPath))){
+            throw new IllegalArgumentException("El índice indicado en los parámetros no existe");
+        }
+    }
+
+    private static void validatePositive(int value, String name){
+        if(value <= 0)
+            throw new IllegalArgumentException("El valor de " + name + " debe ser mayor que 0");
+    }
+
+    private static void validateK1(float k1){
+        if(k1 < 0.1)
+            throw new IllegalArgumentException("El valor para k1 debe ser mayor a 0.1");
+    }
+
+    private static void validateLambda(float lambda){
+        if(lambda <= 0 || lambda > 1)
+            throw new IllegalArgumentException("El valor para jm comprende el rango de (0-1]");
+    }
+
+    //"1" o una lista "1,4,16"
+    private static int[] parseClients(String clientList){
+        int[] clients = Arrays.stream(clientList.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).toArray();
+        for (int c : clients) {
+            validatePositive(c, "clients");
+        }
+        return clients;
+    }
+
+    private static int[] validateRange(String range){
+        if(range.equals("all")){
+            return new int[]{1,50};
+        }
+        String[] partes = range.split("-");
+        int min = Integer.parseInt(partes[0]);
+        int max = partes.length == 2 ? Integer.parseInt(partes[1]) : min;
+        if(min < 1 || max > 50 || min > max){
+            throw new IllegalArgumentException("El rango de queries debe ser válido [min-max] (1 <= min <= max <= 50)");
+        }
+        return new int[]{min, max};
+    }
+
+    //Ejecuta iterations veces todas las queries con clients threads que se reparten las búsquedas
+    private static long runSearches(IndexSearcher searcher, int[] ids, Query[] queries, int cut, int totalHitsThreshold, int iterations, int clients,
+                                    QueryLatencies latencies) throws IOException {
+        int total = iterations * queries.length;
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients, runnable -> {
+            Thread thread = new Thread(runnable, "benchmark-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = next.getAndIncrement(); i < total; i = next.getAndIncrement()) {
+                        int q = i % queries.length;
+                        long searchStart = System.nanoTime();
+                        TopHits topHits = TopHits.search(searcher, queries[q], cut, totalHitsThreshold);
+                        if (latencies != null) {
+                            latencies.record(ids[q], System.nanoTime() - searchStart, topHits.scoredDocs());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Benchmark interrumpido", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al ejecutar una búsqueda", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static Map<String, Object> measure(IndexSearcher searcher, String model, int[] ids, Query[] queries, int cut, int totalHitsThreshold,
+                                               int warmup, int iterations, int clients) throws IOException {
+        //El calentamiento no se mide: JIT, cachés del sistema operativo y de Lucene
+        runSearches(searcher, ids, queries, cut, totalHitsThreshold, warmup, clients, null);
+        QueryLatencies latencies = new QueryLatencies();
+        double elapsed = runSearches(searcher, ids, queries, cut, totalHitsThreshold, iterations, clients, latencies) / 1e9;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("model", model);
+        result.put("similarity", searcher.getSimilarity().toString());
+        result.put("clients", clients);
+        result.put("searches", latencies.count());
+        result.put("elapsedSeconds", elapsed);
+        result.put("qps", latencies.count() / elapsed);
+        result.put("meanMs", latencies.meanMs());
+        result.put("p50Ms", latencies.percentileMs(0.50));
+        result.put("p95Ms", latencies.percentileMs(0.95));
+        result.put("p99Ms", latencies.percentileMs(0.99));
+        result.put("maxMs", latencies.percentileMs(1.0));
+        result.put("meanScoredDocs", latencies.meanScoredDocs());
+
+        System.out.println(String.format(Locale.ROOT, "%-5s clientes %3d: %8.1f QPS | %s", model, clients, latencies.count() / elapsed,
+                latencies.summary()));
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+
+        String usage = "-index INDEXPATH [-cut N] [-queries all | int1 | int1-int2] [-warmup N] [-iterations N] [-clients N[,N2,...]] "
+                + "[-bm25 K1] [-jm LAMBDA] [-totalhits N | exact] [-intraquery N] [-slices MAXDOCS MAXSEGMENTS] [-out FILE.json] [-topics COMPILED]";
+        String indexPath = null, queries = "all", out = null;
+        int cut = 10, warmup = 3, iterations = 10;
+        int totalHitsThreshold = TopHits.DEFAULT_TOTAL_HITS_THRESHOLD;
+        int[] clients = {1};
+        Path topicsPath = TrecCovidTopics.COMPILED_PATH;
+        float k1 = 1.2f, lambda = 0.1f;
+        int intraQuery = 0, sliceDocs = 0, sliceSegments = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    validateIndexPath(indexPath);
+                    break;
+                case "-cut":
+                    cut = Integer.parseInt(args[++i]);
+                    validatePositive(cut, "cut");
+                    break;
+                case "-queries":
+                    queries = args[++i];
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    if (warmup < 0)
+                        throw new IllegalArgumentException("El número de iteraciones de calentamiento no puede ser negativo");
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    validatePositive(iterations, "iterations");
+                    break;
+                case "-clients":
+                    clients = parseClients(args[++i]);
+                    break;
+                case "-bm25":
+                    k1 = Float.parseFloat(args[++i]);
+                    validateK1(k1);
+                    break;
+                case "-jm":
+                    lambda = Float.parseFloat(args[++i]);
+                    validateLambda(lambda);
+                    break;
+                case "-totalhits":
+                    totalHitsThreshold = TopHits.parseThreshold(args[++i]);
+                    break;
+                case "-intraquery":
+                    intraQuery = Integer.parseInt(args[++i]);
+                    validatePositive(intraQuery, "intraquery");
+                    break;
+                case "-slices":
+                    sliceDocs = Integer.parseInt(args[++i]);
+                    sliceSegments = Integer.parseInt(args[++i]);
+                    validatePositive(sliceDocs, "slices");
+                    validatePositive(sliceSegments, "slices");
+                    break;
+                case "-out":
+                    out = args[++i];
+                    break;
+                case "-topics":
+                    //Binario compilado con CompileTrecCovid -out
+                    topicsPath = TrecCovidTopics.compiledPath(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
+            }
+        }
+
+        if (indexPath == null) {
+            System.out.println("Usage: " + usage);
+            System.exit(1);
+        }
+        int[] range = validateRange(queries);
+
+        //Las queries del rango, parseadas una vez como en la evaluación
+        TrecCovidTopics topics = TrecCovidTopics.load(topicsPath).parseQueries();
+        List<Integer> idList = new ArrayList<>();
+        List<Query> queryList = new ArrayList<>();
+        for (int id = range[0]; id <= range[1]; id++) {
+            Query query = topics.getParsedQuery(id);
+            if (query != null) {
+                idList.add(id);
+                queryList.add(query);
+            }
+        }
+        if (queryList.isEmpty()) {
+            throw new IllegalArgumentException("No hay queries en el rango " + queries);
+        }
+        int[] ids = idList.stream().mapToInt(Integer::intValue).toArray();
+        Query[] parsedQueries = queryList.toArray(new Query[0]);
+
+        Path outFile = out != null ? Paths.get(out) : Paths.get(OUTPUT_DIR + "TREC-COVID.benchmark.cut" + cut + ".q" + queries + ".json");
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("index", Paths.get(indexPath).toAbsolutePath().normalize().toString());
+        report.put("cut", cut);
+        report.put("totalHitsThreshold", TopHits.thresholdLabel(totalHitsThreshold));
+        report.put("queries", queries);
+        report.put("numQueries", parsedQueries.length);
+        report.put("warmupIterations", warmup);
+        report.put("iterations", iterations);
+        report.put("intraQueryThreads", intraQuery);
+
+        try (IndexReader indexReader = ShardedIndex.open(Paths.get(indexPath))) {
+            ExecutorService executor = ShardedIndex.newExecutor(indexReader, intraQuery);
+            try {
+                report.put("shards", ShardedIndex.numShards(indexReader));
+                report.put("documents", indexReader.numDocs());
+
+                Map<String, Similarity> models = new LinkedHashMap<>();
+                models.put("bm25", new BM25Similarity(k1, 0.75f));
+                models.put("jm", new LMJelinekMercerSimilarity(lambda));
+
+                List<Map<String, Object>> results = new ArrayList<>();
+                for (Map.Entry<String, Similarity> model : models.entrySet()) {
+                    IndexSearcher searcher = ShardedIndex.newSearcher(indexReader, executor, sliceDocs, sliceSegments);
+                    searcher.setSimilarity(model.getValue());
+                    for (int c : clients) {
+                        results.add(measure(searcher, model.getKey(), ids, parsedQueries, cut, totalHitsThreshold, warmup, iterations, c));
+                    }
+                }
+                report.put("results", results);
+            } finally {
+                if (executor != null)
+                    executor.shutdown();
+            }
+        }
+
+        if (outFile.getParent() != null)
+            Files.createDirectories(outFile.getParent());
+        JsonMapper.builder().enable(SerializationFeature.INDENT_OUTPUT).build().writeValue(outFile.toFile(), report);
+        System.out.println("Resultados guardados en " + outFile);
+    }
+}
@@ -0,0 +1,161 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Búsqueda en cascada: una primera fase rápida (la similitud del IndexSearcher, con early termination) recupera
+ * los K mejores candidatos y una segunda similitud vuelve a puntuar solo esos K con un QueryRescorer.
+ *
+ * Las estadísticas de cada término (TermStates: docFreq, totalTermFreq y su posición en cada segmento) y las de
+ * cada campo se calculan una sola vez y se reutilizan en las dos fases y en todas las queries.
+ */
+public class CascadeSearch {
+
+    //Top-K final y el de la primera fase, con el tiempo de cada fase
+    public static final class Result {
+        private final TopHits topHits, firstStage;
+        private final long firstStageNanos, secondStageNanos;
+
+        private Result(TopHits topHits, TopHits firstStage, long firstStageNanos, long secondStageNanos) {
+            this.topHits = topHits;
+            this.firstStage = firstStage;
+            this.firstStageNanos = firstStageNanos;
+            this.secondStageNanos = secondStageNanos;
+        }
+
+        public TopHits topHits() {
+            return topHits;
+        }
+
+        public TopHits firstStage() {
+            return firstStage;
+        }
+
+        public long firstStageNanos() {
+            return firstStageNanos;
+        }
+
+        public long secondStageNanos() {
+            return secondStageNanos;
+        }
+    }
+
+    private final IndexSearcher firstStage;
+    private final IndexSearcher secondStage;
+    private final int depth;
+    private final double weight;
+    private final IndexReaderContext topContext;
+    private final Map<Term, TermStates> termStates = new ConcurrentHashMap<>();
+    private final Map<String, CollectionStatistics> collectionStatistics = new ConcurrentHashMap<>();
+    private final QueryLatencies firstStageLatencies = new QueryLatencies();
+    private final QueryLatencies secondStageLatencies = new QueryLatencies();
+
+    /*
+     * depth: candidatos de la primera fase. weight NaN: el score final es el de la segunda similitud; si no,
+     * score de la primera + weight * score de la segunda (como QueryRescorer.rescore).
+     */
+    public CascadeSearch(IndexSearcher firstStage, Similarity secondSimilarity, int depth, double weight) {
+        this.firstStage = firstStage;
+        this.depth = depth;
+        this.weight = weight;
+        this.topContext = firstStage.getTopReaderContext();
+        this.secondStage = new IndexSearcher(firstStage.getIndexReader()) {
+            @Override
+            public CollectionStatistics collectionStatistics(String field) throws IOException {
+                try {
+                    return collectionStatistics.computeIfAbsent(field, f -> {
+                        try {
+                            return firstStage.collectionStatistics(f);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+        this.secondStage.setSimilarity(secondSimilarity);
+    }
+
+    private TermStates termStates(Term term) throws IOException {
+        try {
+            return termStates.computeIfAbsent(term, t -> {
+                try {
+                    return TermStates.build(topContext, t, true);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    //La misma query con los TermStates de la caché en cada TermQuery, para no volver a buscar los términos
+    private Query withCachedStates(Query query) throws IOException {
+        if (query instanceof TermQuery) {
+            Term term = ((TermQuery) query).getTerm();
+            return new TermQuery(term, termStates(term));
+        }
+        if (query instanceof BoostQuery) {
+            BoostQuery boostQuery = (BoostQuery) query;
+            return new BoostQuery(withCachedStates(boostQuery.getQuery()), boostQuery.getBoost());
+        }
+        if (query instanceof BooleanQuery) {
+            BooleanQuery booleanQuery = (BooleanQuery) query;
+            BooleanQuery.Builder builder = new BooleanQuery.Builder().setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+            for (BooleanClause clause : booleanQuery) {
+                builder.add(withCachedStates(clause.getQuery()), clause.getOccur());
+            }
+            return builder.build();
+        }
+        return query;
+    }
+
+    public Result search(int queryId, Query query, int k, int totalHitsThreshold) throws IOException {
+        long start = System.nanoTime();
+        Query cached = withCachedStates(query);
+        TopHits candidates = TopHits.search(firstStage, cached, Math.max(k, depth), totalHitsThreshold);
+        long firstStageNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        TopDocs firstTopDocs = new TopDocs(candidates.totalHits(), candidates.scoreDocs());
+        TopDocs rescored = new QueryRescorer(cached) {
+            @Override
+            protected float combine(float firstPassScore, boolean secondPassMatches, float secondPassScore) {
+                float second = secondPassMatches ? secondPassScore : 0f;
+                return Double.isNaN(weight) ? second : (float) (firstPassScore + weight * second);
+            }
+        }.rescore(secondStage, firstTopDocs, k);
+        long secondStageNanos = System.nanoTime() - start;
+        firstStageLatencies.record(queryId, firstStageNanos);
+        secondStageLatencies.record(queryId, secondStageNanos);
+
+        return new Result(new TopHits(rescored.scoreDocs, candidates.totalHits(), candidates.scoredDocs()), candidates,
+                firstStageNanos, secondStageNanos);
+    }
+
+    //Latencia de cada fase por separado
+    public String summary() {
+        return firstStageLatencies.summary("Latencia de la primera fase") + System.lineSeparator()
+                + secondStageLatencies.summary("Latencia del re-ranking (" + depth + " candidatos)");
+    }
+}
@@ -0,0 +1,74 @@
+package es.udc.fic.ri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Compila queries.jsonl y qrels/test.tsv en el fichero binario que cargan SearchEvalTrecCovid y
+ * TrainingTestTrecCovid. Basta con ejecutarlo una vez; si el fichero no existe o sus ficheros de origen han
+ * cambiado, las herramientas leen los ficheros de texto como antes.
+ */
+public class CompileTrecCovid {
+
+    private static void validateInputFile(String file){
+        if(file != null && !Files.isRegularFile(Paths.get(file))){
+            throw new IllegalArgumentException("El fichero " + file + " no existe");
+        }
+    }
+
+    private static URL source(String file, URL resource) throws IOException {
+        return file != null ? Paths.get(file).toUri().toURL() : resource;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String usage = "[-queries QUERIES.JSONL] [-qrels QRELS.TSV] [-out FILE]";
+        String queries = null;
+        String qrels = null;
+        Path out = TrecCovidTopics.COMPILED_PATH;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-queries":
+                    queries = args[++i];
+                    validateInputFile(queries);
+                    break;
+                case "-qrels":
+                    qrels = args[++i];
+                    validateInputFile(qrels);
+                    break;
+                case "-out":
+                    out = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.out.println("Usage: " + usage);
+                    throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        TrecCovidTopics topics;
+        URL queriesSource = source(queries, TrecCovidTopics.queriesResource());
+        URL qrelsSource = source(qrels, TrecCovidTopics.qrelsResource());
+        if (queriesSource == null || qrelsSource == null) {
+            throw new IllegalArgumentException("No se encuentran las queries o los juicios de relevancia de TREC-COVID");
+        }
+        try (InputStream queriesInputStream = queriesSource.openStream();
+             InputStream qrelsInputStream = qrelsSource.openStream()) {
+            topics = TrecCovidTopics.readText(queriesInputStream, qrelsInputStream);
+        }
+
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        topics.writeCompiled(out, queriesSource, qrelsSource);
+
+        int judgments = topics.getNumJudgments();
+        System.out.println("Compiladas " + topics.getQueries().size() + " queries y " + judgments + " juicios en " + out
+                + " (" + Files.size(out) + " bytes, " + (System.nanoTime() - start) / 1_000_000 + " ms)");
+    }
+}
@@ -0,0 +1,125 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Tabla docID → _id de un IndexReader construida a partir de los doc values del _id (KeywordField).
+ *
+ * Cada docID guarda el ordinal global de su _id en un array empaquetado (los bits justos para el número
+ * de _id distintos) y los _id se guardan una vez, ordenados, en un único array de bytes con sus offsets
+ * empaquetados. Se construye una vez por reader y sirve mientras ese reader esté abierto, así que las
+ * métricas y los informes no tienen que descomprimir stored fields para saber qué documento es cada hit.
+ */
+public class ExternalIdTable {
+
+    private static final String ID_FIELD = "_id";
+    //Ordinal guardado para los documentos sin _id (los demás se guardan como ordinal + 1)
+    private static final long NO_ORD = 0;
+
+    //Una tabla por reader; las entradas desaparecen cuando el reader deja de usarse
+    private static final Map<IndexReader, ExternalIdTable> TABLES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final PackedInts.Reader docToOrd;
+    private final byte[] idBytes;
+    private final PackedLongValues offsets;
+    private final long valueCount;
+
+    private ExternalIdTable(PackedInts.Reader docToOrd, byte[] idBytes, PackedLongValues offsets, long valueCount) {
+        this.docToOrd = docToOrd;
+        this.idBytes = idBytes;
+        this.offsets = offsets;
+        this.valueCount = valueCount;
+    }
+
+    public static ExternalIdTable forReader(IndexReader reader) throws IOException {
+        synchronized (TABLES) {
+            ExternalIdTable table = TABLES.get(reader);
+            if (table == null) {
+                table = build(reader);
+                TABLES.put(reader, table);
+            }
+            return table;
+        }
+    }
+
+    private static ExternalIdTable build(IndexReader reader) throws IOException {
+        List<LeafReaderContext> leaves = reader.leaves();
+        SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = leaves.get(i).reader().getSortedSetDocValues(ID_FIELD);
+            if (values[i] == null) {
+                throw new IllegalArgumentException("El índice no tiene doc values en " + ID_FIELD
+                        + ": hay que volver a indexarlo con IndexTrecCovid");
+            }
+        }
+
+        //Ordinales globales: los _id de todos los segmentos ordenados y sin repetir
+        OrdinalMap ordinalMap = OrdinalMap.build(null, values, PackedInts.DEFAULT);
+        long valueCount = ordinalMap.getValueCount();
+
+        byte[] idBytes = new byte[0];
+        int length = 0;
+        PackedLongValues.Builder offsets = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+        for (long ord = 0; ord < valueCount; ord++) {
+            int segment = ordinalMap.getFirstSegmentNumber(ord);
+            BytesRef id = values[segment].lookupOrd(ordinalMap.getFirstSegmentOrd(ord));
+            offsets.add(length);
+            idBytes = ArrayUtil.grow(idBytes, length + id.length);
+            System.arraycopy(id.bytes, id.offset, idBytes, length, id.length);
+            length += id.length;
+        }
+        offsets.add(length);
+
+        PackedInts.Mutable docToOrd = PackedInts.getMutable(reader.maxDoc(), PackedInts.bitsRequired(valueCount), PackedInts.COMPACT);
+        for (int i = 0; i < leaves.size(); i++) {
+            LeafReaderContext leaf = leaves.get(i);
+            LongValues globalOrds = ordinalMap.getGlobalOrds(i);
+            SortedSetDocValues docValues = leaf.reader().getSortedSetDocValues(ID_FIELD);
+            for (int docID = docValues.nextDoc(); docID != DocIdSetIterator.NO_MORE_DOCS; docID = docValues.nextDoc()) {
+                docToOrd.set(leaf.docBase + docID, globalOrds.get(docValues.nextOrd()) + 1);
+            }
+        }
+
+        return new ExternalIdTable(docToOrd, ArrayUtil.copyOfSubArray(idBytes, 0, length), offsets.build(), valueCount);
+    }
+
+    //Ordinal global del _id del documento, o -1 si no tiene
+    public long ord(int docID) {
+        return docToOrd.get(docID) - 1;
+    }
+
+    public String id(int docID) {
+        long ord = docToOrd.get(docID);
+        return ord == NO_ORD ? null : lookupOrd(ord - 1);
+    }
+
+    public String lookupOrd(long ord) {
+        int start = (int) offsets.get(ord);
+        int end = (int) offsets.get(ord + 1);
+        return new BytesRef(idBytes, start, end - start).utf8ToString();
+    }
+
+    //Número de _id distintos del reader
+    public long size() {
+        return valueCount;
+    }
+
+    public long ramBytesUsed() {
+        return docToOrd.ramBytesUsed() + idBytes.length + offsets.ramBytesUsed();
+    }
+}
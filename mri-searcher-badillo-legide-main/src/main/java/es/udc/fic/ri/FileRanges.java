@@ -0,0 +1,85 @@
+package es.udc.fic.ri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reparto de un fichero de líneas (JSONL del corpus, runs y qrels) en rangos que empiezan tras un salto de línea,
+ * para que cada hilo lea el suyo: como stream con lecturas posicionales (IndexTrecCovid) o mapeado en memoria (TrecEval).
+ */
+public final class FileRanges {
+
+    private FileRanges() {
+    }
+
+    //Divide el fichero en n rangos de tamaño parecido que empiezan siempre tras un salto de línea
+    public static long[] splitAtNewlines(FileChannel channel, int n) throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[n + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (int k = 1; k < n; k++) {
+            long position = Math.max(bounds[k - 1], size * k / n - 1);
+            long start = size;
+            search:
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        start = position + i + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+            bounds[k] = Math.max(start, bounds[k - 1]);
+        }
+        bounds[n] = size;
+        return bounds;
+    }
+
+    //El rango [start, end) como stream; cada hilo puede leer el suyo del mismo canal a la vez
+    public static InputStream open(FileChannel channel, long start, long end) {
+        return new RangeInputStream(channel, start, end);
+    }
+
+    //El rango [start, end) mapeado en memoria; no puede pasar de 2 GB
+    public static MappedByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    //Lee el rango con lecturas posicionales, que no mueven la posición compartida del canal
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        private RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+}
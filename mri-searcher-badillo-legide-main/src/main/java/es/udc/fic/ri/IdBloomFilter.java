@@ -0,0 +1,50 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Filtro de Bloom de identificadores de documento. Puede dar falsos positivos (un _id nuevo que parece
+ * existir) pero nunca falsos negativos, así que basta para decidir cuándo un addDocument es seguro.
+ */
+public class IdBloomFilter {
+
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    //Tamaño óptimo para expectedIds identificadores con una tasa de falsos positivos fpp
+    public IdBloomFilter(long expectedIds, double fpp) {
+        long n = Math.max(1, expectedIds);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.bits = new long[(int) (numBits / 64)];
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    //Doble hashing (Kirsch-Mitzenmacher): la posición i es h1 + i * h2
+    private long position(int h1, int h2, int i) {
+        return Math.floorMod(h1 + (long) i * h2, numBits);
+    }
+
+    //Añade el identificador y devuelve true si seguro que no estaba
+    public synchronized boolean addIfAbsent(BytesRef id) {
+        int h1 = StringHelper.murmurhash3_x86_32(id, 0);
+        int h2 = StringHelper.murmurhash3_x86_32(id, h1);
+        boolean absent = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = position(h1, h2, i);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            if ((bits[word] & mask) == 0) {
+                absent = true;
+                bits[word] |= mask;
+            }
+        }
+        return absent;
+    }
+
+    public long sizeInBytes() {
+        return bits.length * 8L;
+    }
+}
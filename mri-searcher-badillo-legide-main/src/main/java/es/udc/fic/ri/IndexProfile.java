@@ -0,0 +1,88 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.codecs.lucene95.Lucene95Codec;
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Perfil de almacenamiento del índice de TREC-COVID: compresión de los stored fields, campos keyword
+ * con doc values y uso de ficheros compuestos. El _id siempre lleva doc values (los usa el modo -delta).
+ */
+public enum IndexProfile {
+
+    //Lo que hacía IndexTrecCovid hasta ahora
+    DEFAULT(Lucene95Codec.Mode.BEST_SPEED, true, "url", "pubmed_id"),
+    //Sin ficheros compuestos: se abren más ficheros pero no hay que empaquetarlos al hacer flush y merge
+    SPEED(Lucene95Codec.Mode.BEST_SPEED, false, "url", "pubmed_id"),
+    //Stored fields con DEFLATE y sin doc values en url y pubmed_id, que solo se recuperan como stored fields
+    SIZE(Lucene95Codec.Mode.BEST_COMPRESSION, true);
+
+    //Campos keyword que pueden llevar doc values además del _id
+    public static final Set<String> KEYWORD_FIELDS = Set.of("url", "pubmed_id");
+
+    private final Lucene95Codec.Mode storedFieldsMode;
+    private final boolean compoundFile;
+    private final Set<String> docValuesFields;
+
+    IndexProfile(Lucene95Codec.Mode storedFieldsMode, boolean compoundFile, String... docValuesFields) {
+        this.storedFieldsMode = storedFieldsMode;
+        this.compoundFile = compoundFile;
+        this.docValuesFields = new LinkedHashSet<>();
+        this.docValuesFields.add("_id");
+        this.docValuesFields.addAll(Arrays.asList(docValuesFields));
+    }
+
+    public static IndexProfile parse(String name) {
+        for (IndexProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("El perfil del índice debe ser default, speed o size");
+    }
+
+    //Lista de campos separada por comas ("none" para dejar solo el _id)
+    public static Set<String> parseDocValuesFields(String fields) {
+        Set<String> result = new LinkedHashSet<>();
+        result.add("_id");
+        if (fields.equalsIgnoreCase("none")) {
+            return result;
+        }
+        for (String field : fields.split(",")) {
+            if (!KEYWORD_FIELDS.contains(field) && !field.equals("_id")) {
+                throw new IllegalArgumentException("Solo pueden llevar doc values los campos _id, url y pubmed_id");
+            }
+            result.add(field);
+        }
+        return result;
+    }
+
+    public Lucene95Codec.Mode getStoredFieldsMode() {
+        return storedFieldsMode;
+    }
+
+    public boolean useCompoundFile() {
+        return compoundFile;
+    }
+
+    public Set<String> getDocValuesFields() {
+        return docValuesFields;
+    }
+
+    public void configure(IndexWriterConfig iwc) {
+        iwc.setCodec(new Lucene95Codec(storedFieldsMode));
+        iwc.setUseCompoundFile(compoundFile);
+        if (!compoundFile) {
+            //tampoco los segmentos resultado de un merge
+            iwc.getMergePolicy().setNoCFSRatio(0.0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,163 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Informe del índice construido para comparar perfiles: tamaño en disco (total y por tipo de fichero),
+ * número de segmentos y latencia de las queries de TREC-COVID recuperando los stored fields de los hits.
+ */
+public class IndexReport {
+
+    private static final int LATENCY_ROUNDS = 3;
+    private static final int LATENCY_HITS = 10;
+
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    public void put(String key, Object value) {
+        values.put(key, value);
+    }
+
+    //Tamaño y segmentos del último commit, sumando todos los shards
+    public void measureIndex(List<Directory> dirs) throws IOException {
+        Map<String, Long> bytesByExtension = new TreeMap<>();
+        long totalBytes = 0;
+        int segments = 0;
+        for (Directory dir : dirs) {
+            SegmentInfos segmentInfos = SegmentInfos.readLatestCommit(dir);
+            for (String file : segmentInfos.files(true)) {
+                long length = dir.fileLength(file);
+                int dot = file.lastIndexOf('.');
+                String extension = dot < 0 ? file : file.substring(dot + 1);
+                bytesByExtension.merge(extension, length, Long::sum);
+                totalBytes += length;
+            }
+            segments += segmentInfos.size();
+        }
+        values.put("shards", dirs.size());
+        values.put("segments", segments);
+        values.put("indexBytes", totalBytes);
+        values.put("bytesByExtension", bytesByExtension);
+    }
+
+    //Queries junto al corpus o, si no están, las de TREC-COVID como en SearchEvalTrecCovid
+    public static TrecCovidTopics readTopics(Path docs) throws IOException {
+        Path sibling = docs.toAbsolutePath().getParent().resolve("queries.jsonl");
+        if (Files.exists(sibling)) {
+            try (InputStream is = Files.newInputStream(sibling)) {
+                return TrecCovidTopics.readText(is, null);
+            }
+        }
+        return TrecCovidTopics.load();
+    }
+
+    /*
+     * Ejecuta todas las queries una vez para calentar y LATENCY_ROUNDS veces midiendo. Cada medida incluye
+     * la búsqueda de los LATENCY_HITS primeros y la lectura de sus stored fields, que es donde se nota la compresión
+     */
+    public void measureQueryLatency(Path indexPath, Similarity similarity, TrecCovidTopics topics) throws IOException {
+        if (topics.getQueries().isEmpty()) {
+            System.out.println("No se encuentra queries.jsonl: se omite la medida de latencia");
+            //mismas columnas en el CSV aunque no se mida
+            values.put("queries", 0);
+            values.put("latencyMeanMs", Double.NaN);
+            values.put("latencyP50Ms", Double.NaN);
+            values.put("latencyP95Ms", Double.NaN);
+            return;
+        }
+        try {
+            topics.parseQueries();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("No se pueden parsear las queries", e);
+        }
+        List<Query> queries = new ArrayList<>();
+        for (int id : topics.getQueries().keySet()) {
+            queries.add(topics.getParsedQuery(id));
+        }
+
+        try (IndexReader reader = ShardedIndex.open(indexPath)) {
+            ExecutorService executor = ShardedIndex.newExecutor(reader);
+            try {
+                IndexSearcher searcher = ShardedIndex.newSearcher(reader, executor);
+                searcher.setSimilarity(similarity);
+                for (Query query : queries) {
+                    runQuery(searcher, query);
+                }
+                long[] latencies = new long[queries.size() * LATENCY_ROUNDS];
+                int n = 0;
+                for (int round = 0; round < LATENCY_ROUNDS; round++) {
+                    for (Query query : queries) {
+                        long start = System.nanoTime();
+                        runQuery(searcher, query);
+                        latencies[n++] = System.nanoTime() - start;
+                    }
+                }
+                Arrays.sort(latencies);
+                values.put("queries", queries.size());
+                values.put("latencyMeanMs", Arrays.stream(latencies).average().orElse(0) / 1e6);
+                values.put("latencyP50Ms", percentile(latencies, 0.50) / 1e6);
+                values.put("latencyP95Ms", percentile(latencies, 0.95) / 1e6);
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    private static void runQuery(IndexSearcher searcher, Query query) throws IOException {
+        StoredFields storedFields = searcher.storedFields();
+        for (ScoreDoc hit : searcher.search(query, LATENCY_HITS).scoreDocs) {
+            storedFields.document(hit.doc);
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    //Añade una fila al CSV (con cabecera si es nuevo), así varias ejecuciones con perfiles distintos quedan en una tabla
+    public void appendCsv(Path file) throws IOException {
+        List<String> columns = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Map) continue;
+            columns.add(entry.getKey());
+            row.add(String.valueOf(entry.getValue()));
+        }
+        boolean header = !Files.exists(file) || Files.size(file) == 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (header) {
+                writer.write(String.join(",", columns) + "\r\n");
+            }
+            writer.write(String.join(",", row) + "\r\n");
+        }
+    }
+}
@@ -3,28 +3,68 @@ package es.udc.fic.ri;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.KeywordField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
-
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.airlift.compress.zstd.ZstdInputStream;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.BufferedInputStream;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
 
 //@JsonIgnoreProperties(ignoreUnknown = true) para ignorar excepcion si fala algun campo
 //@JsonProperty("imdb_id") cambiar el nombre de la variable de como aparece en el json por ejemplo para seguir convencion de nombres
@@ -40,31 +80,239 @@ public class IndexTrecCovid{
         record Metadata(String url, String pubmed_id){}
     }
 
-    private static void indexCorpus(TrecCovidRecord trecCovidRecord, IndexWriter indexWriter) throws IOException {
-        org.apache.lucene.document.Document doc = new org.apache.lucene.document.Document();
+    //Marca de fin de corpus en la cola de lectura anticipada (se compara por referencia)
+    private static final TrecCovidRecord END_OF_CORPUS = new TrecCovidRecord(null, null, null, null);
+
+    //Mensajes por documento solo con -debug
+    private static boolean debug = false;
 
-        doc.add(new KeywordField("_id", trecCovidRecord._id, Field.Store.YES));
+    //Hash del contenido indexado de un registro, guardado como doc value para la indexación incremental
+    static long contentHash(TrecCovidRecord trecCovidRecord) {
+        String content = trecCovidRecord.title + '\u0000' + trecCovidRecord.text + '\u0000'
+                + trecCovidRecord.metadata.url + '\u0000' + trecCovidRecord.metadata.pubmed_id;
+        BytesRef bytes = new BytesRef(content);
+        int high = StringHelper.murmurhash3_x86_32(bytes, 0);
+        int low = StringHelper.murmurhash3_x86_32(bytes, 0x9747b28c);
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    //Los campos keyword llevan doc values (KeywordField) solo si el perfil del índice lo indica
+    private static Field keywordField(String name, String value, Set<String> docValuesFields) {
+        return docValuesFields.contains(name) ? new KeywordField(name, value, Field.Store.YES)
+                : new StringField(name, value, Field.Store.YES);
+    }
+
+    //Documento Lucene de un registro del corpus
+    private static Document buildDocument(TrecCovidRecord trecCovidRecord, long contentHash, Set<String> docValuesFields) {
+        Document doc = new Document();
+
+        doc.add(keywordField("_id", trecCovidRecord._id, docValuesFields));
 
         doc.add(new TextField("title", trecCovidRecord.title, Field.Store.YES));
 
         doc.add(new TextField("text", trecCovidRecord.text, Field.Store.YES));
 
-        doc.add(new KeywordField("url", trecCovidRecord.metadata.url, Field.Store.YES));
+        doc.add(keywordField("url", trecCovidRecord.metadata.url, docValuesFields));
 
-        doc.add(new KeywordField("pubmed_id", trecCovidRecord.metadata.pubmed_id, Field.Store.YES));
+        doc.add(keywordField("pubmed_id", trecCovidRecord.metadata.pubmed_id, docValuesFields));
 
-        if(indexWriter.getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE){
-            System.out.println("Indexando corpus.jsonl  (CREATE)");
-            indexWriter.addDocument(doc);
-        }else{
-            System.out.println("Indexando corpus.jsonl  (APPEND OR CREATE_OR_APPEND)");
-            indexWriter.updateDocument(new Term("_id", trecCovidRecord._id), doc);
+        doc.add(new NumericDocValuesField(CONTENT_HASH_FIELD, contentHash));
+
+        return doc;
+    }
+
+    private static final String CONTENT_HASH_FIELD = "contentHash";
+    private static final int ID_LOCK_STRIPES = 1024;
+
+    //Estado de la indexación incremental: hash de cada _id del índice y _id vistos en el corpus
+    private static class DeltaState {
+        //Al terminar solo quedan los _id que ya no están en el corpus
+        private final Map<String, Long> indexedHashes;
+        private final Set<String> seen = ConcurrentHashMap.newKeySet();
+        private final LongAdder unchanged = new LongAdder();
+        private final LongAdder changed = new LongAdder();
+
+        DeltaState(Map<String, Long> indexedHashes) {
+            this.indexedHashes = indexedHashes;
         }
+    }
 
+    //Indexa los registros del corpus decidiendo entre addDocument y updateDocument; lo comparten todos los hilos
+    private static class CorpusIndexer {
+        private final List<? extends IndexWriter> indexWriters; //uno por shard
+        private final IndexingProgress progress;
+        private final boolean create;
+        private final IdBloomFilter knownIds; //_id ya indexados, solo en modo upsert
+        private final DeltaState delta; //solo en modo delta
+        private final Set<String> docValuesFields;
+        private final LongAdder added = new LongAdder();
+        private final LongAdder updated = new LongAdder();
+        //Con varios hilos, la decisión entre addDocument y updateDocument y la escritura de un mismo _id van
+        //bajo el mismo lock, para que un updateDocument no se adelante al addDocument que debe reemplazar
+        private final Object[] idLocks = new Object[ID_LOCK_STRIPES];
+
+        CorpusIndexer(List<? extends IndexWriter> indexWriters, IndexingProgress progress, Set<String> docValuesFields, IdBloomFilter knownIds, DeltaState delta) {
+            this.indexWriters = indexWriters;
+            this.docValuesFields = docValuesFields;
+            this.progress = progress;
+            this.create = indexWriters.get(0).getConfig().getOpenMode() == IndexWriterConfig.OpenMode.CREATE;
+            this.knownIds = knownIds;
+            this.delta = delta;
+            for (int i = 0; i < idLocks.length; i++) {
+                idLocks[i] = new Object();
+            }
+        }
 
+        private Object lockFor(String id) {
+            return idLocks[(id.hashCode() & 0x7fffffff) % idLocks.length];
+        }
+
+        private IndexWriter writerFor(String id) {
+            return indexWriters.size() == 1 ? indexWriters.get(0) : indexWriters.get(ShardedIndex.shardFor(id, indexWriters.size()));
+        }
+
+        void index(TrecCovidRecord trecCovidRecord) throws IOException {
+            IndexWriter indexWriter = writerFor(trecCovidRecord._id);
+            long hash = contentHash(trecCovidRecord);
+
+            if(delta != null){
+                indexDelta(trecCovidRecord, hash);
+                progress.documentIndexed();
+                return;
+            }
+
+            Document doc = buildDocument(trecCovidRecord, hash, docValuesFields);
+            if(create){
+                if(debug)
+                    System.out.println("Indexando corpus.jsonl  (CREATE) " + trecCovidRecord._id);
+                indexWriter.addDocument(doc);
+                added.increment();
+            }else{
+                synchronized (lockFor(trecCovidRecord._id)) {
+                    if(knownIds != null && knownIds.addIfAbsent(new BytesRef(trecCovidRecord._id))){
+                        //El _id no está en el índice ni ha salido antes en el corpus: no hay nada que borrar
+                        if(debug)
+                            System.out.println("Indexando corpus.jsonl  (UPSERT, nuevo) " + trecCovidRecord._id);
+                        indexWriter.addDocument(doc);
+                        added.increment();
+                    }else{
+                        if(debug)
+                            System.out.println("Indexando corpus.jsonl  (APPEND OR CREATE_OR_APPEND) " + trecCovidRecord._id);
+                        indexWriter.updateDocument(new Term("_id", trecCovidRecord._id), doc);
+                        updated.increment();
+                    }
+                }
+            }
+            progress.documentIndexed();
+        }
+
+        //Solo se escriben los registros nuevos o con contenido distinto al indexado
+        private void indexDelta(TrecCovidRecord trecCovidRecord, long hash) throws IOException {
+            IndexWriter indexWriter = writerFor(trecCovidRecord._id);
+            synchronized (lockFor(trecCovidRecord._id)) {
+                Long indexedHash = delta.indexedHashes.remove(trecCovidRecord._id);
+                boolean firstTime = delta.seen.add(trecCovidRecord._id);
+
+                if(indexedHash != null && indexedHash == hash){
+                    delta.unchanged.increment();
+                }else if(indexedHash == null && firstTime){
+                    if(debug)
+                        System.out.println("Indexando corpus.jsonl  (DELTA, nuevo) " + trecCovidRecord._id);
+                    indexWriter.addDocument(buildDocument(trecCovidRecord, hash, docValuesFields));
+                    added.increment();
+                }else{
+                    //Contenido distinto o _id repetido en el corpus
+                    if(debug)
+                        System.out.println("Indexando corpus.jsonl  (DELTA, cambiado) " + trecCovidRecord._id);
+                    indexWriter.updateDocument(new Term("_id", trecCovidRecord._id), buildDocument(trecCovidRecord, hash, docValuesFields));
+                    delta.changed.increment();
+                    updated.increment();
+                }
+            }
+        }
+
+        //Borra los documentos cuyo _id no ha aparecido en el corpus y devuelve cuántos eran
+        long deleteRemoved() throws IOException {
+            Map<IndexWriter, List<Term>> removedByShard = new HashMap<>();
+            for (String id : delta.indexedHashes.keySet()) {
+                if(debug)
+                    System.out.println("Borrando del índice (DELTA) " + id);
+                IndexWriter indexWriter = writerFor(id);
+                List<Term> removed = removedByShard.computeIfAbsent(indexWriter, writer -> new ArrayList<>());
+                removed.add(new Term("_id", id));
+                if (removed.size() == 1024) {
+                    indexWriter.deleteDocuments(removed.toArray(new Term[0]));
+                    removed.clear();
+                }
+            }
+            for (Map.Entry<IndexWriter, List<Term>> removed : removedByShard.entrySet()) {
+                if (!removed.getValue().isEmpty()) {
+                    removed.getKey().deleteDocuments(removed.getValue().toArray(new Term[0]));
+                }
+            }
+            return delta.indexedHashes.size();
+        }
     }
 
+    //Lector de lo que ya tienen los IndexWriter de todos los shards
+    private static IndexReader openReader(List<? extends IndexWriter> indexWriters) throws IOException {
+        IndexReader[] readers = new IndexReader[indexWriters.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = DirectoryReader.open(indexWriters.get(i));
+        }
+        return new MultiReader(readers, true);
+    }
+
+    //Hash de contenido de cada documento vivo del índice, de todos los shards (NO_HASH si se indexó sin él)
+    private static DeltaState loadIndexedHashes(List<? extends IndexWriter> indexWriters) throws IOException {
+        Map<String, Long> indexedHashes = new ConcurrentHashMap<>();
+        try (IndexReader reader = openReader(indexWriters)) {
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                Bits liveDocs = leaf.getLiveDocs();
+                SortedSetDocValues ids = DocValues.getSortedSet(leaf, "_id");
+                NumericDocValues hashes = DocValues.getNumeric(leaf, CONTENT_HASH_FIELD);
+                for (int docID = ids.nextDoc(); docID != DocIdSetIterator.NO_MORE_DOCS; docID = ids.nextDoc()) {
+                    if (liveDocs != null && !liveDocs.get(docID)) continue;
+                    String id = ids.lookupOrd(ids.nextOrd()).utf8ToString();
+                    long hash = hashes.advanceExact(docID) ? hashes.longValue() : NO_HASH;
+                    indexedHashes.put(id, hash);
+                }
+            }
+        }
+        System.out.println("Delta: " + indexedHashes.size() + " documentos en el índice");
+        return new DeltaState(indexedHashes);
+    }
+
+    //Documentos indexados antes de guardar el hash: siempre se consideran cambiados
+    private static final long NO_HASH = 0L;
+
+    //Filtro de Bloom con los _id que ya tiene el índice, con hueco para los que se añadan en esta ejecución
+    private static IdBloomFilter loadExistingIds(List<? extends IndexWriter> indexWriters) throws IOException {
+        try (IndexReader reader = openReader(indexWriters)) {
+            long existing = 0;
+            for (LeafReaderContext context : reader.leaves()) {
+                Terms terms = context.reader().terms("_id");
+                if (terms != null) {
+                    existing += terms.size();
+                }
+            }
 
+            IdBloomFilter filter = new IdBloomFilter(2 * existing + 1_000_000, 0.01);
+            for (LeafReaderContext context : reader.leaves()) {
+                Terms terms = context.reader().terms("_id");
+                if (terms != null) {
+                    TermsEnum termsEnum = terms.iterator();
+                    BytesRef id;
+                    while ((id = termsEnum.next()) != null) {
+                        filter.addIfAbsent(id);
+                    }
+                }
+            }
+            System.out.println("Upsert: " + existing + " _id existentes en un filtro de Bloom de " + filter.sizeInBytes() / 1024 + " KB");
+            return filter;
+        }
+    }
 
     private static void validateIndexPath(String indexPath){
         File indexDirectory = new File(indexPath);
@@ -95,6 +343,198 @@ public class IndexTrecCovid{
         }
     }
 
+    private static void validateReadAhead(int readAhead){
+        if(readAhead <= 0)
+            throw new IllegalArgumentException("El tamaño de la lectura anticipada debe ser mayor que 0");
+    }
+
+    private static boolean isCompressed(Path docs){
+        String name = docs.getFileName().toString().toLowerCase();
+        return name.endsWith(".gz") || name.endsWith(".zst");
+    }
+
+    //Abre el corpus descomprimiéndolo al vuelo si es .gz o .zst; los gzip de varios miembros se descomprimen en paralelo
+    private static InputStream openCorpus(Path docs, int threads, IndexingProgress progress) throws IOException {
+        String name = docs.getFileName().toString().toLowerCase();
+        if(name.endsWith(".gz") && threads > 1){
+            ParallelGzipInputStream is = new ParallelGzipInputStream(docs, threads);
+            progress.trackInput(is::getPosition);
+            return is;
+        }
+        //Se cuentan los bytes del fichero, comprimidos o no, para el MB/s y la ETA
+        InputStream raw = progress.count(Files.newInputStream(docs));
+        if(name.endsWith(".gz")){
+            return new GZIPInputStream(raw, 64 * 1024);
+        }else if(name.endsWith(".zst")){
+            return new ZstdInputStream(new BufferedInputStream(raw, 64 * 1024));
+        }
+        return raw;
+    }
+
+    /*
+     * Lee el corpus registro a registro con el MappingIterator en un hilo lector y lo indexan según llega
+     * indexers hilos. La cola acotada a readAhead registros mantiene constante la memoria sea cual sea el tamaño del corpus
+     */
+    private static void streamCorpus(InputStream is, ObjectReader reader, CorpusIndexer indexer, int readAhead, int indexers) throws IOException {
+        BlockingQueue<TrecCovidRecord> queue = new ArrayBlockingQueue<>(readAhead);
+        AtomicReference<IOException> readError = new AtomicReference<>();
+
+        Thread readerThread = new Thread(() -> {
+            try (MappingIterator<TrecCovidRecord> iterator = reader.readValues(is)) {
+                while (iterator.hasNextValue()) {
+                    queue.put(iterator.nextValue());
+                }
+            } catch (IOException e) {
+                readError.set(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    //una marca de fin por cada hilo que indexa
+                    for (int i = 0; i < indexers; i++) {
+                        queue.put(END_OF_CORPUS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "corpus-reader");
+        readerThread.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(indexers);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < indexers; i++) {
+                workers.add(executor.submit(() -> {
+                    TrecCovidRecord record;
+                    while ((record = queue.take()) != END_OF_CORPUS) {
+                        indexer.index(record);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            readerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexación interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al indexar el corpus", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            //Si la indexación falla se desbloquea al lector para que termine
+            if (readerThread.isAlive()) {
+                readerThread.interrupt();
+            }
+        }
+
+        if (readError.get() != null) {
+            throw readError.get();
+        }
+    }
+
+    private static void validateThreads(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("El número de threads debe ser mayor que 0");
+    }
+
+    private static void validateRamBuffer(double ramBufferMB){
+        if(ramBufferMB <= 0)
+            throw new IllegalArgumentException("El tamaño del buffer de RAM del IndexWriter (MB) debe ser mayor que 0");
+    }
+
+    //Cada worker parsea su rango de líneas del JSONL y añade los documentos al IndexWriter compartido
+    private static void indexRanges(Path docs, ObjectReader reader, CorpusIndexer indexer, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(docs, StandardOpenOption.READ)) {
+            long[] bounds = FileRanges.splitAtNewlines(channel, threads);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int k = 0; k < threads; k++) {
+                long start = bounds[k];
+                long end = bounds[k + 1];
+                if (start == end) continue;
+                workers.add(executor.submit(() -> {
+                    InputStream is = new BufferedInputStream(indexer.progress.count(FileRanges.open(channel, start, end)), 64 * 1024);
+                    try (MappingIterator<TrecCovidRecord> iterator = reader.readValues(is)) {
+                        while (iterator.hasNextValue()) {
+                            indexer.index(iterator.nextValue());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Indexación interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al indexar un rango del corpus", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void validateProgressInterval(int seconds){
+        if(seconds <= 0)
+            throw new IllegalArgumentException("El intervalo del informe de progreso (segundos) debe ser mayor que 0");
+    }
+
+    //La ordenación del índice usa los doc values del campo
+    private static void validateIndexSort(String indexSort, Set<String> docValuesFields){
+        if(!docValuesFields.contains(indexSort))
+            throw new IllegalArgumentException("Solo se puede ordenar el índice por un campo con doc values: " + docValuesFields);
+    }
+
+    private static void validateForceMerge(int segments){
+        if(segments <= 0)
+            throw new IllegalArgumentException("El número de segmentos del force merge debe ser mayor que 0");
+    }
+
+    //Configuración de cada IndexWriter (no se puede compartir entre writers)
+    private static IndexWriterConfig newIndexWriterConfig(Analyzer analyzer, String openMode, String indexingModel, float indexingValue,
+                                                          double ramBufferMB, IndexProfile profile, String indexSort) {
+        IndexWriterConfig iwc = new IndexWriterConfig(analyzer); //configuracion del writer
+        if(openMode.equals("create")){
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        }else if(openMode.equals("create_or_append")){
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        }else{
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        }
+
+        if(indexingModel.equals("jm")){
+            iwc.setSimilarity(new LMJelinekMercerSimilarity(indexingValue));
+        }else{
+            iwc.setSimilarity(new BM25Similarity(indexingValue,0.75f));
+        }
+
+        iwc.setRAMBufferSizeMB(ramBufferMB);
+
+        //En append el perfil debe coincidir con el del índice existente: Lucene no deja cambiar los doc values de un campo
+        profile.configure(iwc);
+        if(indexSort != null){
+            iwc.setIndexSort(new Sort(new SortedSetSortField(indexSort, false)));
+        }
+        return iwc;
+    }
+
+    private static void validateShards(int shards){
+        if(shards <= 0)
+            throw new IllegalArgumentException("El número de shards debe ser mayor que 0");
+    }
+
+    //Un _id siempre va al mismo shard, así que para añadir a un índice hay que usar el mismo número de shards
+    private static void validateExistingShards(String indexPath, int shards, String openMode){
+        int existing = ShardedIndex.shardPaths(Paths.get(indexPath)).size();
+        int expected = shards > 1 ? shards : 0;
+        if(existing > 0 && (openMode.equals("create") ? existing > expected : existing != expected))
+            throw new IllegalArgumentException("El índice " + indexPath + " tiene " + existing + " shards y no se puede abrir con -shards " + shards);
+    }
+
     private static void validateIndexingModel(String indexingModel, float indexingValue){
         if(indexingModel.equals("jm")){
             if(indexingValue < 0 || indexingValue > 1)
@@ -110,13 +550,29 @@ public class IndexTrecCovid{
 
     public static void main( String[] args ) throws IOException {
 
-        String usage = "-openmode OPENMODE -index INDEXPATH -docs DOCSPATH -indexingmodel [jm LAMBDA | bm25 K1]";
+        String usage = "-openmode OPENMODE -index INDEXPATH -docs DOCSPATH[.gz|.zst] -indexingmodel [jm LAMBDA | bm25 K1] [-readahead N] [-threads N] [-rambuffer MB] [-progress SECONDS] [-summary FILE.json] [-debug] [-upsert | -delta]"
+                + " [-profile default|speed|size] [-docvalues FIELD,... | none] [-indexsort FIELD] [-forcemerge N] [-report FILE.csv] [-shards N]";
         String indexPath = null;
         String docsPath = null;
         String openMode = null;
         String indexingModel = null;
         float indexingValue = 0;
-        IndexWriter indexWriter = null;
+        int readAhead = 1024; //registros leídos por adelantado como máximo
+        int threads = 0; //con más de un thread se indexan en paralelo rangos del corpus; 0: uno por shard
+        int shards = 1; //con más de uno el índice se reparte en INDEXPATH/shardK según el hash del _id
+        double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+        int progressInterval = 10; //segundos entre informes de progreso
+        String summaryPath = null;
+        boolean upsert = false;
+        boolean delta = false;
+        IndexProfile profile = IndexProfile.DEFAULT;
+        Set<String> docValuesFields = null; //null: los del perfil
+        String indexSort = null;
+        int forceMergeSegments = -1;
+        String reportPath = null;
+        Similarity similarity;
+        List<Directory> dirs = new ArrayList<>();
+        List<IndexingProgress.CountingIndexWriter> indexWriters = new ArrayList<>();
         Analyzer analyzer = null;
 
 
@@ -139,6 +595,54 @@ public class IndexTrecCovid{
                     indexingValue = Float.parseFloat(args[++i]);
                     validateIndexingModel(indexingModel, indexingValue);
                     break;
+                case "-readahead":
+                    readAhead = Integer.parseInt(args[++i]);
+                    validateReadAhead(readAhead);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    validateThreads(threads);
+                    break;
+                case "-rambuffer":
+                    ramBufferMB = Double.parseDouble(args[++i]);
+                    validateRamBuffer(ramBufferMB);
+                    break;
+                case "-progress":
+                    progressInterval = Integer.parseInt(args[++i]);
+                    validateProgressInterval(progressInterval);
+                    break;
+                case "-summary":
+                    summaryPath = args[++i];
+                    break;
+                case "-debug":
+                    debug = true;
+                    break;
+                case "-upsert":
+                    upsert = true;
+                    break;
+                case "-delta":
+                    delta = true;
+                    break;
+                case "-profile":
+                    profile = IndexProfile.parse(args[++i]);
+                    break;
+                case "-docvalues":
+                    docValuesFields = IndexProfile.parseDocValuesFields(args[++i]);
+                    break;
+                case "-indexsort":
+                    indexSort = args[++i];
+                    break;
+                case "-forcemerge":
+                    forceMergeSegments = Integer.parseInt(args[++i]);
+                    validateForceMerge(forceMergeSegments);
+                    break;
+                case "-report":
+                    reportPath = args[++i];
+                    break;
+                case "-shards":
+                    shards = Integer.parseInt(args[++i]);
+                    validateShards(shards);
+                    break;
                 default:
                     throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
             }
@@ -149,56 +653,114 @@ public class IndexTrecCovid{
             System.exit(1);
         }
 
-        //Creo el indexWriter
+        if ((upsert || delta) && openMode.equals("create")) {
+            throw new IllegalArgumentException("Los modos -upsert y -delta solo tienen sentido con append o create_or_append");
+        }
+        if (upsert && delta) {
+            throw new IllegalArgumentException("Las opciones -upsert y -delta son mutuamente exclusivas");
+        }
+        if (docValuesFields == null) {
+            docValuesFields = profile.getDocValuesFields();
+        }
+        if (indexSort != null) {
+            validateIndexSort(indexSort, docValuesFields);
+        }
+        validateExistingShards(indexPath, shards, openMode);
+        if (threads == 0) {
+            threads = shards;
+        }
+
+        //Creo un indexWriter por shard; los documentos se reparten entre ellos y se indexan a la vez
         try{
             //pillar el analyzer
-            Directory dir = FSDirectory.open(Paths.get(indexPath)); //lugar en el que se va a crear o sobreescribir el indice
             analyzer = new StandardAnalyzer();
-            IndexWriterConfig iwc = new IndexWriterConfig(analyzer); //configuracion del writer
-            if(openMode.equals("create")){
-                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-            }else if(openMode.equals("create_or_append")){
-                iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-            }else{
-                iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
-            }
-
-            if(indexingModel.equals("jm")){
-                iwc.setSimilarity(new LMJelinekMercerSimilarity(indexingValue));
-            }else{
-                iwc.setSimilarity(new BM25Similarity(indexingValue,0.75f));
+            for (int shard = 0; shard < shards; shard++) {
+                //lugar en el que se va a crear o sobreescribir el indice
+                Path shardPath = shards == 1 ? Paths.get(indexPath) : ShardedIndex.shardPath(Paths.get(indexPath), shard);
+                Directory dir = FSDirectory.open(shardPath);
+                dirs.add(dir);
+                IndexWriterConfig iwc = newIndexWriterConfig(analyzer, openMode, indexingModel, indexingValue, ramBufferMB, profile, indexSort);
+                indexWriters.add(new IndexingProgress.CountingIndexWriter(dir, iwc));
             }
 
-            indexWriter = new IndexWriter(dir,iwc);
-
         }catch (IOException e){
             e.printStackTrace();
         }
 
-        var is = new FileInputStream(docsPath);
         //var is = IndexTrecCovid.class.getResourceAsStream("/trec-covid/corpus.jsonl");
         ObjectReader reader = JsonMapper.builder().findAndAddModules().build()
                 .readerFor(TrecCovidRecord.class);
-        List<TrecCovidRecord> trecCovidRecordList = null;
 
-        try{
-            trecCovidRecordList = reader.<TrecCovidRecord>readValues(is).readAll();
-        }catch (IOException e){
-            e.printStackTrace();
+        //indexar corpus.jsonl a medida que se lee
+        Path docs = Paths.get(docsPath);
+        IndexingProgress progress = new IndexingProgress(indexWriters, Files.size(docs));
+        CorpusIndexer indexer = new CorpusIndexer(indexWriters, progress, docValuesFields,
+                upsert ? loadExistingIds(indexWriters) : null, delta ? loadIndexedHashes(indexWriters) : null);
+        progress.start(progressInterval);
+        if(threads > 1 && !isCompressed(docs)){
+            indexRanges(docs, reader, indexer, threads);
+        }else{
+            //Un fichero comprimido no se puede dividir en rangos: un lector descomprime y parsea y threads hilos indexan
+            try(var is = openCorpus(docs, threads, progress)){
+                streamCorpus(is, reader, indexer, readAhead, threads);
+            }
         }
-
-        //indexar corpus.jsonl
-        for(TrecCovidRecord record : trecCovidRecordList ){
-            indexCorpus(record, indexWriter);
+        progress.addSummary("addDocument", indexer.added.sum());
+        progress.addSummary("updateDocument", indexer.updated.sum());
+        if(delta){
+            long removed = indexer.deleteRemoved();
+            System.out.println("Delta: " + indexer.added.sum() + " añadidos, " + indexer.delta.changed.sum() + " cambiados, "
+                    + indexer.delta.unchanged.sum() + " sin cambios, " + removed + " eliminados");
+            progress.addSummary("added", indexer.added.sum());
+            progress.addSummary("changed", indexer.delta.changed.sum());
+            progress.addSummary("unchanged", indexer.delta.unchanged.sum());
+            progress.addSummary("removed", removed);
         }
 
         //indexar queries.jsonl
 
-        if(indexWriter != null)
+        IndexReport report = new IndexReport();
+        report.put("profile", profile.toString());
+        report.put("storedFields", profile.getStoredFieldsMode().toString());
+        report.put("compoundFile", profile.useCompoundFile());
+        report.put("docValues", String.join("+", docValuesFields));
+        report.put("indexSort", indexSort == null ? "none" : indexSort);
+        similarity = indexWriters.get(0).getConfig().getSimilarity();
+
+        report.put("forceMerge", forceMergeSegments > 0 ? String.valueOf(forceMergeSegments) : "none");
+        long forceMergeStart = System.nanoTime();
+        if(forceMergeSegments > 0){
+            //Se lanzan los merges de todos los shards y después se espera a que terminen
+            for (IndexWriter indexWriter : indexWriters) {
+                indexWriter.forceMerge(forceMergeSegments, false);
+            }
+            for (IndexWriter indexWriter : indexWriters) {
+                indexWriter.forceMerge(forceMergeSegments);
+            }
+        }
+        report.put("forceMergeSeconds", (System.nanoTime() - forceMergeStart) / 1e9);
+
+        for (IndexWriter indexWriter : indexWriters) {
             indexWriter.close();
+        }
 
-        if(is != null)
-            is.close();
+        //El informe final incluye el flush y los merges del cierre
+        progress.stop();
+        report.put("buildSeconds", progress.summary().get("elapsedSeconds"));
+        //Tamaño y latencia de las queries solo con -report: reabrir el índice y lanzar las queries tiene su coste
+        if(reportPath != null){
+            report.measureIndex(dirs);
+            report.measureQueryLatency(Paths.get(indexPath), similarity, IndexReport.readTopics(docs));
+        }
+        progress.addSummary("index", report.getValues());
+        System.out.println(JsonMapper.builder().build().writeValueAsString(progress.summary()));
+        if(summaryPath != null)
+            progress.writeSummary(Paths.get(summaryPath));
+        if(reportPath != null)
+            report.appendCsv(Paths.get(reportPath));
+        for (Directory dir : dirs) {
+            dir.close();
+        }
     }
 
 }
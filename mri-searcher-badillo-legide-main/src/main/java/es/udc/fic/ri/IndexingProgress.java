@@ -0,0 +1,209 @@
+package es.udc.fic.ri;
+
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Informe periódico del progreso de la indexación: documentos/s, MB/s leídos, uso del buffer de RAM del
+ * IndexWriter, flushes y merges y tiempo restante estimado. Al terminar genera un resumen en JSON.
+ */
+public class IndexingProgress {
+
+    /*
+     * Directorio que cuenta cada segmento que se vuelca a disco: al sellar un segmento el IndexWriter escribe su
+     * .si con un IOContext de flush (los merges usan uno de merge)
+     */
+    private static class FlushCountingDirectory extends FilterDirectory {
+        private final AtomicInteger flushes = new AtomicInteger();
+
+        private FlushCountingDirectory(Directory in) {
+            super(in);
+        }
+
+        @Override
+        public IndexOutput createOutput(String name, IOContext context) throws IOException {
+            if (context.context == IOContext.Context.FLUSH && "si".equals(IndexFileNames.getExtension(name))) {
+                flushes.incrementAndGet();
+            }
+            return super.createOutput(name, context);
+        }
+    }
+
+    //IndexWriter que cuenta los flushes y merges terminados
+    public static class CountingIndexWriter extends IndexWriter {
+        private final FlushCountingDirectory flushCounter;
+        private final AtomicInteger merges = new AtomicInteger();
+
+        public CountingIndexWriter(Directory directory, IndexWriterConfig config) throws IOException {
+            this(new FlushCountingDirectory(directory), config);
+        }
+
+        private CountingIndexWriter(FlushCountingDirectory flushCounter, IndexWriterConfig config) throws IOException {
+            super(flushCounter, config);
+            this.flushCounter = flushCounter;
+        }
+
+        @Override
+        protected void mergeSuccess(MergePolicy.OneMerge merge) {
+            merges.incrementAndGet();
+        }
+
+        public int getFlushes() {
+            return flushCounter.flushes.get();
+        }
+
+        public int getMerges() {
+            return merges.get();
+        }
+    }
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    //Uno por shard; los datos del informe son la suma de todos
+    private final List<CountingIndexWriter> indexWriters;
+    private final long totalBytes;
+    private final double ramBufferMB;
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private LongSupplier bytesRead = bytes::sum;
+    private final Map<String, Object> extraSummary = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private long startNanos;
+    private long endNanos = -1;
+
+    public IndexingProgress(List<CountingIndexWriter> indexWriters, long totalBytes) {
+        this.indexWriters = indexWriters;
+        this.totalBytes = totalBytes;
+        this.ramBufferMB = indexWriters.stream().mapToDouble(writer -> writer.getConfig().getRAMBufferSizeMB()).sum();
+    }
+
+    public void documentIndexed() {
+        documents.increment();
+    }
+
+    //Envuelve un stream de entrada para contar los bytes leídos del corpus
+    public InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) bytes.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) bytes.add(n);
+                return n;
+            }
+        };
+    }
+
+    //Para entradas que saben por sí mismas cuánto han consumido del fichero
+    public void trackInput(LongSupplier bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    public void start(int intervalSeconds) {
+        startNanos = System.nanoTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "indexing-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(statusLine()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        endNanos = System.nanoTime();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        System.out.println(statusLine());
+    }
+
+    private double elapsedSeconds() {
+        return ((endNanos < 0 ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+    }
+
+    private static String formatTime(long seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private long ramBytesUsed() {
+        return indexWriters.stream().filter(IndexWriter::isOpen).mapToLong(IndexWriter::ramBytesUsed).sum();
+    }
+
+    private int flushes() {
+        return indexWriters.stream().mapToInt(CountingIndexWriter::getFlushes).sum();
+    }
+
+    private int merges() {
+        return indexWriters.stream().mapToInt(CountingIndexWriter::getMerges).sum();
+    }
+
+    private String statusLine() {
+        double elapsed = Math.max(elapsedSeconds(), 1e-9);
+        long docs = documents.sum();
+        long read = bytesRead.getAsLong();
+        double bytesPerSecond = read / elapsed;
+        String eta = "--:--:--";
+        if (totalBytes > 0 && bytesPerSecond > 0) {
+            eta = formatTime((long) (Math.max(0, totalBytes - read) / bytesPerSecond));
+        }
+        return String.format("Indexados %d docs en %s (%.0f docs/s, %.2f MB/s) | buffer RAM %.1f/%.0f MB | flushes %d, merges %d | ETA %s",
+                docs, formatTime((long) elapsed), docs / elapsed, bytesPerSecond / MB,
+                ramBytesUsed() / MB, ramBufferMB, flushes(), merges(), eta);
+    }
+
+    public Map<String, Object> summary() {
+        double elapsed = Math.max(elapsedSeconds(), 1e-9);
+        long docs = documents.sum();
+        long read = bytesRead.getAsLong();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("documents", docs);
+        summary.put("bytesRead", read);
+        summary.put("totalBytes", totalBytes);
+        summary.put("elapsedSeconds", elapsed);
+        summary.put("docsPerSecond", docs / elapsed);
+        summary.put("mbPerSecond", read / MB / elapsed);
+        summary.put("ramBufferMB", ramBufferMB);
+        summary.put("flushes", flushes());
+        summary.put("merges", merges());
+        summary.putAll(extraSummary);
+        return summary;
+    }
+
+    //Datos adicionales para el resumen final
+    public void addSummary(String key, Object value) {
+        extraSummary.put(key, value);
+    }
+
+    public void writeSummary(Path file) throws IOException {
+        JsonMapper.builder().enable(SerializationFeature.INDENT_OUTPUT).build()
+                .writeValue(file.toFile(), summary());
+    }
+}
@@ -0,0 +1,134 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Juicios de relevancia de TREC-COVID traducidos a docIDs de un IndexReader.
+ *
+ * Cada _id juzgado se busca una sola vez en el índice al crear el modelo. Por query quedan los docIDs
+ * juzgados ordenados con su etiqueta en un array paralelo, así que saber si un hit es relevante es una
+ * búsqueda binaria en un array del tamaño de los juicios de la query, sin Strings ni mapas.
+ */
+public class Judgments {
+
+    public static final class QueryJudgments {
+        private final int[] docs; //docIDs juzgados, ordenados
+        private final int[] labels;
+        private final int totalRelevant;
+
+        private QueryJudgments(int[] docs, int[] labels, int totalRelevant) {
+            this.docs = docs;
+            this.labels = labels;
+            this.totalRelevant = totalRelevant;
+        }
+
+        public boolean isRelevant(int docID) {
+            return label(docID) != 0;
+        }
+
+        //Etiqueta del juicio (0 si el documento no está juzgado)
+        public int label(int docID) {
+            int i = Arrays.binarySearch(docs, docID);
+            return i < 0 ? 0 : labels[i];
+        }
+
+        //Juicios distintos de 0 en el fichero de qrels, estén o no en el índice
+        public int totalRelevant() {
+            return totalRelevant;
+        }
+    }
+
+    private static final QueryJudgments NO_JUDGMENTS = new QueryJudgments(new int[0], new int[0], 0);
+
+    private final QueryJudgments[] byQuery;
+
+    private Judgments(QueryJudgments[] byQuery) {
+        this.byQuery = byQuery;
+    }
+
+    public QueryJudgments get(int queryId) {
+        return queryId >= 0 && queryId < byQuery.length && byQuery[queryId] != null ? byQuery[queryId] : NO_JUDGMENTS;
+    }
+
+    //docIDs vivos de cada _id juzgado, por índice del _id, buscando cada _id una vez en el diccionario de términos de cada segmento
+    private static int[][] resolveDocs(IndexReader reader, TrecCovidTopics topics) throws IOException {
+        BytesRef[] ids = new BytesRef[topics.getNumJudgedIds()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = topics.getJudgedId(i);
+        }
+        int[][] docsById = new int[ids.length][];
+        int[] counts = new int[ids.length];
+        Arrays.fill(docsById, new int[0]);
+        PostingsEnum postings = null;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms("_id");
+            if (terms == null) continue;
+            TermsEnum termsEnum = terms.iterator();
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            for (int i = 0; i < ids.length; i++) {
+                if (!termsEnum.seekExact(ids[i])) continue;
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int docID = postings.nextDoc(); docID != DocIdSetIterator.NO_MORE_DOCS; docID = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(docID)) {
+                        if (counts[i] == docsById[i].length) {
+                            docsById[i] = Arrays.copyOf(docsById[i], Math.max(1, counts[i] * 2));
+                        }
+                        docsById[i][counts[i]++] = leaf.docBase + docID;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            docsById[i] = Arrays.copyOf(docsById[i], counts[i]);
+        }
+        return docsById;
+    }
+
+    public static Judgments build(IndexReader reader, TrecCovidTopics topics) throws IOException {
+        int[][] docsById = resolveDocs(reader, topics);
+        int[] judgedQueries = topics.getJudgedQueries();
+        int maxQueryId = judgedQueries.length == 0 ? -1 : judgedQueries[judgedQueries.length - 1];
+        QueryJudgments[] byQuery = new QueryJudgments[maxQueryId + 1];
+
+        for (int queryId : judgedQueries) {
+            IntBuffer pairs = topics.getJudgments(queryId);
+            //docID en los 32 bits altos y etiqueta en los bajos, para ordenar por docID
+            long[] judged = new long[pairs.remaining() / 2];
+            int n = 0;
+            int totalRelevant = 0;
+            while (pairs.hasRemaining()) {
+                int[] docs = docsById[pairs.get()];
+                int label = pairs.get();
+                if (label != 0) {
+                    totalRelevant++;
+                }
+                for (int docID : docs) {
+                    if (n == judged.length) {
+                        judged = Arrays.copyOf(judged, n * 2);
+                    }
+                    judged[n++] = ((long) docID << 32) | (label & 0xFFFFFFFFL);
+                }
+            }
+            Arrays.sort(judged, 0, n);
+            int[] docs = new int[n];
+            int[] labels = new int[n];
+            for (int i = 0; i < n; i++) {
+                docs[i] = (int) (judged[i] >>> 32);
+                labels[i] = (int) judged[i];
+            }
+            byQuery[queryId] = new QueryJudgments(docs, labels, totalRelevant);
+        }
+        return new Judgments(byQuery);
+    }
+}
@@ -0,0 +1,359 @@
+package es.udc.fic.ri;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Descomprime en paralelo un fichero gzip con varios miembros (por ejemplo, varios .gz concatenados)
+ * y devuelve los datos en orden como un único stream.
+ *
+ * Los miembros no indican su longitud, así que se buscan posibles cabeceras (1f 8b 08) por delante del
+ * miembro actual y se empieza a descomprimir cada candidato en un hilo. Un candidato solo se usa si empieza
+ * justo donde termina, con CRC correcto, el miembro anterior; los que caen dentro de otro miembro se descartan.
+ * Cada miembro en curso deja su salida en una cola acotada, así que la memoria no depende del tamaño del fichero.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int QUEUED_CHUNKS = 4;
+    //Máximo de bytes comprimidos que se examinan buscando cabeceras en cada lectura
+    private static final int SCAN_STEP = 1024 * 1024;
+
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    //Resultado de un trozo de salida de un miembro: datos, fin (con el offset final) o error
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final long memberEnd;
+        final IOException error;
+
+        Chunk(byte[] data, int length, long memberEnd, IOException error) {
+            this.data = data;
+            this.length = length;
+            this.memberEnd = memberEnd;
+            this.error = error;
+        }
+
+        boolean isEnd() {
+            return data == null;
+        }
+    }
+
+    private final class MemberTask implements Runnable {
+        final long start;
+        final BlockingQueue<Chunk> output = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        volatile boolean cancelled = false;
+
+        MemberTask(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            Chunk last;
+            try {
+                last = new Chunk(null, 0, inflateMember(), null);
+            } catch (IOException e) {
+                last = new Chunk(null, 0, -1, e);
+            } catch (RuntimeException e) {
+                last = new Chunk(null, 0, -1, new IOException(e));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                emit(last);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void emit(Chunk chunk) throws InterruptedException {
+            while (!cancelled && !output.offer(chunk, 10, TimeUnit.MILLISECONDS)) {
+                //espera a que el lector consuma o cancele el candidato
+            }
+        }
+
+        //Descomprime el miembro que empieza en start y devuelve el offset en el que termina
+        private long inflateMember() throws IOException, InterruptedException {
+            ChannelInput in = new ChannelInput(start);
+            if (in.readUnsignedByte() != 0x1f || in.readUnsignedByte() != 0x8b || in.readUnsignedByte() != 8) {
+                throw new IOException("Cabecera gzip no válida en " + start);
+            }
+            int flags = in.readUnsignedByte();
+            in.skip(6); //MTIME, XFL, OS
+            if ((flags & FEXTRA) != 0) {
+                in.skip(in.readUnsignedByte() | (in.readUnsignedByte() << 8));
+            }
+            if ((flags & FNAME) != 0) {
+                while (in.readUnsignedByte() != 0) { }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (in.readUnsignedByte() != 0) { }
+            }
+            if ((flags & FHCRC) != 0) {
+                in.skip(2);
+            }
+
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try {
+                byte[] input = new byte[CHUNK_SIZE];
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int filled = 0;
+                while (!inflater.finished()) {
+                    if (cancelled) {
+                        throw new InterruptedException();
+                    }
+                    if (inflater.needsInput()) {
+                        int n = in.read(input);
+                        if (n <= 0) {
+                            throw new EOFException("Miembro gzip truncado en " + start);
+                        }
+                        inflater.setInput(input, 0, n);
+                    }
+                    int n = inflater.inflate(buffer, filled, buffer.length - filled);
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new IOException("Miembro gzip no válido en " + start);
+                    }
+                    filled += n;
+                    if (filled == buffer.length) {
+                        crc.update(buffer, 0, filled);
+                        size += filled;
+                        emit(new Chunk(buffer, filled, -1, null));
+                        buffer = new byte[CHUNK_SIZE];
+                        filled = 0;
+                    }
+                }
+                if (filled > 0) {
+                    crc.update(buffer, 0, filled);
+                    size += filled;
+                    emit(new Chunk(buffer, filled, -1, null));
+                }
+
+                //El trailer empieza en el primer byte que el inflater no ha consumido
+                ChannelInput trailer = new ChannelInput(in.position() - inflater.getRemaining());
+                long expectedCrc = trailer.readIntLE();
+                long expectedSize = trailer.readIntLE();
+                if (expectedCrc != crc.getValue() || expectedSize != (size & 0xFFFFFFFFL)) {
+                    throw new IOException("CRC o tamaño incorrecto en el miembro gzip de " + start);
+                }
+                return trailer.position();
+            } catch (DataFormatException e) {
+                throw new IOException("Datos deflate no válidos en " + start, e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    //Lectura secuencial con buffer a partir de una posición del fichero, usando lecturas posicionales
+    private final class ChannelInput {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        private long position;
+
+        ChannelInput(long position) {
+            this.position = position;
+            buffer.limit(0);
+        }
+
+        long position() {
+            return position;
+        }
+
+        int readUnsignedByte() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                buffer.flip();
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+            }
+            position++;
+            return buffer.get() & 0xFF;
+        }
+
+        long readIntLE() throws IOException {
+            return readUnsignedByte() | (readUnsignedByte() << 8) | (readUnsignedByte() << 16) | ((long) readUnsignedByte() << 24);
+        }
+
+        void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                readUnsignedByte();
+            }
+        }
+
+        int read(byte[] b) throws IOException {
+            if (buffer.hasRemaining()) {
+                int n = Math.min(b.length, buffer.remaining());
+                buffer.get(b, 0, n);
+                position += n;
+                return n;
+            }
+            int n = channel.read(ByteBuffer.wrap(b), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ExecutorService executor;
+    private final int window;
+    //Candidatos en curso, ordenados por offset de inicio
+    private final TreeMap<Long, MemberTask> tasks = new TreeMap<>();
+    private long scanPosition = 0;
+    private long offset = 0;
+    private MemberTask current;
+    private Chunk chunk;
+    private int chunkPosition;
+    private boolean closed = false;
+
+    public ParallelGzipInputStream(Path file, int threads) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.window = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(window, runnable -> {
+            Thread thread = new Thread(runnable, "gzip-member");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //Busca nuevas cabeceras por delante y lanza un hilo por candidato hasta llenar la ventana
+    private void scheduleCandidates() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long limit = Math.min(fileSize, scanPosition + SCAN_STEP);
+        while (tasks.size() < window && scanPosition < limit) {
+            buffer.clear();
+            int n = channel.read(buffer, scanPosition);
+            if (n < 4) {
+                scanPosition = fileSize;
+                break;
+            }
+            int i = 0;
+            for (; i <= n - 4 && tasks.size() < window; i++) {
+                if (buffer.get(i) == (byte) 0x1f && buffer.get(i + 1) == (byte) 0x8b && buffer.get(i + 2) == 8
+                        && (buffer.get(i + 3) & 0xE0) == 0 && scanPosition + i >= offset) {
+                    long start = scanPosition + i;
+                    MemberTask task = new MemberTask(start);
+                    tasks.put(start, task);
+                    executor.execute(task);
+                }
+            }
+            scanPosition += i;
+        }
+    }
+
+    private MemberTask nextMember() throws IOException {
+        //Los candidatos anteriores al final del miembro actual estaban dentro de él
+        Map<Long, MemberTask> stale = tasks.headMap(offset);
+        for (MemberTask task : stale.values()) {
+            task.cancelled = true;
+        }
+        stale.clear();
+
+        if (offset >= fileSize) {
+            return null;
+        }
+        if (scanPosition < offset) {
+            scanPosition = offset;
+        }
+        MemberTask task = tasks.get(offset);
+        while (task == null && scanPosition <= offset) {
+            scheduleCandidates();
+            task = tasks.get(offset);
+            if (scanPosition >= fileSize) break;
+        }
+        //Como GZIPInputStream, lo que haya tras el último miembro válido se ignora
+        return task;
+    }
+
+    private boolean fill() throws IOException {
+        while (chunk == null || chunkPosition >= chunk.length) {
+            if (current == null) {
+                current = nextMember();
+                if (current == null) {
+                    return false;
+                }
+            }
+            scheduleCandidates();
+            try {
+                chunk = current.output.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Lectura interrumpida", e);
+            }
+            chunkPosition = 0;
+            if (chunk.isEnd()) {
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                tasks.remove(current.start);
+                offset = chunk.memberEnd;
+                current = null;
+                chunk = null;
+            }
+        }
+        return true;
+    }
+
+    //Bytes comprimidos consumidos (hasta el final del último miembro leído completo)
+    public long getPosition() {
+        return offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk.data[chunkPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk.data, chunkPosition, b, off, n);
+        chunkPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MemberTask task : tasks.values()) {
+            task.cancelled = true;
+        }
+        executor.shutdownNow();
+        channel.close();
+    }
+}
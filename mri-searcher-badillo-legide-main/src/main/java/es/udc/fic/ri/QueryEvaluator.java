@@ -0,0 +1,122 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+
+/**
+ * Calcula P@n, Recall@n, RR y AP@n de una query, en uno o varios cortes, en una sola pasada por los hits.
+ * La relevancia de cada hit se consulta en los Judgments por docID; el _id solo se busca en la
+ * ExternalIdTable del reader cuando un informe lo necesita.
+ */
+public class QueryEvaluator {
+
+    //Métricas de una query; la relevancia y el _id de cada hit hasta el corte se consultan bajo demanda
+    public static final class Result {
+        private final ScoreDoc[] hits;
+        private final Judgments.QueryJudgments judgments;
+        private final ExternalIdTable idTable;
+        private final double precision, recall, reciprocalRank, averagePrecision;
+
+        private Result(ScoreDoc[] hits, Judgments.QueryJudgments judgments, ExternalIdTable idTable,
+                       double precision, double recall, double reciprocalRank, double averagePrecision) {
+            this.hits = hits;
+            this.judgments = judgments;
+            this.idTable = idTable;
+            this.precision = precision;
+            this.recall = recall;
+            this.reciprocalRank = reciprocalRank;
+            this.averagePrecision = averagePrecision;
+        }
+
+        public boolean isRelevant(int i) {
+            return judgments.isRelevant(hits[i].doc);
+        }
+
+        public String id(int i) {
+            return idTable.id(hits[i].doc);
+        }
+
+        //Hits recuperados (todos, no solo hasta el corte)
+        public int length() {
+            return hits.length;
+        }
+
+        public float score(int i) {
+            return hits[i].score;
+        }
+
+        public double precision() {
+            return precision;
+        }
+
+        public double recall() {
+            return recall;
+        }
+
+        public double reciprocalRank() {
+            return reciprocalRank;
+        }
+
+        public double averagePrecision() {
+            return averagePrecision;
+        }
+
+        public double get(String metrica) {
+            switch (metrica) {
+                case "P":
+                    return precision;
+                case "R":
+                    return recall;
+                case "MRR":
+                    return reciprocalRank;
+                default: //MAP
+                    return averagePrecision;
+            }
+        }
+    }
+
+    private final ExternalIdTable idTable;
+    private final Judgments judgments;
+
+    public QueryEvaluator(IndexSearcher indexSearcher, Judgments judgments) throws IOException {
+        this.idTable = ExternalIdTable.forReader(indexSearcher.getIndexReader());
+        this.judgments = judgments;
+    }
+
+    public Result evaluate(int queryId, ScoreDoc[] hits, int cut) {
+        return evaluate(queryId, hits, new int[]{cut})[0];
+    }
+
+    //Métricas en cada corte (ordenados de menor a mayor) recorriendo los hits una sola vez
+    public Result[] evaluate(int queryId, ScoreDoc[] hits, int[] cuts) {
+        Judgments.QueryJudgments queryJudgments = judgments.get(queryId);
+        int totalRelevant = queryJudgments.totalRelevant();
+        Result[] results = new Result[cuts.length];
+
+        int relevantRetrieved = 0;
+        double precisionSum = 0;
+        double reciprocalRank = 0.0;
+        int i = 0;
+        for (int k = 0; k < cuts.length; k++) {
+            int n = Math.min(cuts[k], hits.length);
+            for (; i < n; i++) {
+                if (queryJudgments.isRelevant(hits[i].doc)) {
+                    relevantRetrieved++;
+                    precisionSum += (double) relevantRetrieved / (i + 1);
+                    if (reciprocalRank == 0.0) {
+                        reciprocalRank = 1.0 / (i + 1);
+                    }
+                }
+            }
+
+            //Como antes, sin hits la precisión es 0/0 (NaN)
+            double precision = (double) relevantRetrieved / n;
+            double recall = totalRelevant != 0 ? (double) relevantRetrieved / totalRelevant : 0.0;
+            double averagePrecision = relevantRetrieved > 0 ? precisionSum / relevantRetrieved : 0.0;
+            results[k] = new Result(hits, queryJudgments, idTable, precision, recall, reciprocalRank, averagePrecision);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,89 @@
+package es.udc.fic.ri;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latencia de cada búsqueda de una ejecución (solo IndexSearcher.search, sin evaluación ni informes).
+ * Se puede registrar desde varios threads a la vez. Opcionalmente guarda también los documentos puntuados.
+ */
+public class QueryLatencies {
+
+    private int[] queryIds = new int[64];
+    private long[] nanos = new long[64];
+    private long[] scoredDocs = new long[64];
+    private int count;
+    private boolean withScoredDocs;
+
+    public void record(int queryId, long elapsedNanos) {
+        record(queryId, elapsedNanos, -1);
+    }
+
+    //scored < 0 si no se conoce
+    public synchronized void record(int queryId, long elapsedNanos, long scored) {
+        if (count == nanos.length) {
+            queryIds = Arrays.copyOf(queryIds, count * 2);
+            nanos = Arrays.copyOf(nanos, count * 2);
+            scoredDocs = Arrays.copyOf(scoredDocs, count * 2);
+        }
+        queryIds[count] = queryId;
+        nanos[count] = elapsedNanos;
+        scoredDocs[count] = scored;
+        withScoredDocs |= scored >= 0;
+        count++;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    //Percentil por rango más cercano, en milisegundos
+    public synchronized double percentileMs(double p) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, Math.max(0, (int) Math.ceil(p * count) - 1))] / 1e6;
+    }
+
+    public synchronized double meanMs() {
+        return count == 0 ? Double.NaN : Arrays.stream(nanos, 0, count).average().orElse(0) / 1e6;
+    }
+
+    //Media de documentos puntuados de las búsquedas en que se conoce
+    public synchronized double meanScoredDocs() {
+        return Arrays.stream(scoredDocs, 0, count).filter(s -> s >= 0).average().orElse(Double.NaN);
+    }
+
+    public synchronized String scoredDocsSummary() {
+        long[] known = Arrays.stream(scoredDocs, 0, count).filter(s -> s >= 0).toArray();
+        return String.format(Locale.ROOT, "Documentos puntuados por query (%d búsquedas): media %.1f, max %d",
+                known.length, Arrays.stream(known).average().orElse(0), Arrays.stream(known).max().orElse(0));
+    }
+
+    public String summary() {
+        return summary("Latencia por query");
+    }
+
+    public String summary(String label) {
+        return String.format(Locale.ROOT, "%s (%d búsquedas): media %.3f ms, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+                label, count(), meanMs(), percentileMs(0.50), percentileMs(0.95), percentileMs(0.99), percentileMs(1.0));
+    }
+
+    //Una línea por búsqueda en el orden en que se registraron
+    public synchronized void writeCsv(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(withScoredDocs ? "query,latencyMs,scoredDocs\r\n" : "query,latencyMs\r\n");
+            for (int i = 0; i < count; i++) {
+                writer.write(queryIds[i] + "," + String.format(Locale.ROOT, "%.3f", nanos[i] / 1e6)
+                        + (withScoredDocs ? "," + scoredDocs[i] : "") + "\r\n");
+            }
+        }
+    }
+}
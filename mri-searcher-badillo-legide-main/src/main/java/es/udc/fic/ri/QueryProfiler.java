@@ -0,0 +1,396 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Perfil de cada búsqueda para saber por qué una query es lenta: tiempo de parseo, de rewrite + createWeight y
+ * de puntuación en cada segmento, postings recorridos y advances de los scorers.
+ *
+ * Las búsquedas se hacen sobre un envoltorio del índice cuyos PostingsEnum cuentan nextDoc y advance, y los
+ * segmentos se puntúan uno a uno en el thread de la query para medir cada uno. El top-K es el mismo que el de
+ * IndexSearcher.search. Solo se usa con -profiling; sin él las búsquedas no pasan por aquí.
+ */
+public class QueryProfiler {
+
+    //Contadores de la query que se está perfilando en cada thread
+    private static final class Counts {
+        private long postings, advances;
+    }
+
+    private static final ThreadLocal<Counts> CURRENT = new ThreadLocal<>();
+
+    public static final class SegmentProfile {
+        private final String segment;
+        private final int maxDoc;
+        private final long nanos, scoredDocs;
+
+        private SegmentProfile(String segment, int maxDoc, long nanos, long scoredDocs) {
+            this.segment = segment;
+            this.maxDoc = maxDoc;
+            this.nanos = nanos;
+            this.scoredDocs = scoredDocs;
+        }
+    }
+
+    public static final class Profile {
+        private final int queryId;
+        private final String parsedQuery;
+        private final long parseNanos, createWeightNanos, scoringNanos;
+        private final long postings, advances;
+        private final List<SegmentProfile> segments;
+        private final TopHits topHits;
+
+        private Profile(int queryId, String parsedQuery, long parseNanos, long createWeightNanos, long scoringNanos,
+                        long postings, long advances, List<SegmentProfile> segments, TopHits topHits) {
+            this.queryId = queryId;
+            this.parsedQuery = parsedQuery;
+            this.parseNanos = parseNanos;
+            this.createWeightNanos = createWeightNanos;
+            this.scoringNanos = scoringNanos;
+            this.postings = postings;
+            this.advances = advances;
+            this.segments = segments;
+            this.topHits = topHits;
+        }
+
+        public TopHits topHits() {
+            return topHits;
+        }
+
+        public long totalNanos() {
+            return parseNanos + createWeightNanos + scoringNanos;
+        }
+    }
+
+    private final IndexSearcher searcher;
+    private final List<Profile> profiles = new ArrayList<>();
+
+    public QueryProfiler(IndexReader reader, Similarity similarity) throws IOException {
+        this.searcher = new IndexSearcher(wrap(reader));
+        this.searcher.setSimilarity(similarity);
+        //Sin caché de queries, para medir siempre la puntuación completa
+        this.searcher.setQueryCache(null);
+    }
+
+    //Índice único (DirectoryReader) o MultiReader de shards
+    private static IndexReader wrap(IndexReader reader) throws IOException {
+        if (reader instanceof DirectoryReader) {
+            return new CountingDirectoryReader((DirectoryReader) reader);
+        }
+        List<IndexReader> shards = new ArrayList<>();
+        for (IndexReaderContext child : reader.getContext().children()) {
+            shards.add(wrap(child.reader()));
+        }
+        return new MultiReader(shards.toArray(new IndexReader[0]), false);
+    }
+
+    public Profile profile(int queryId, String queryText, int k, int totalHitsThreshold) throws IOException, ParseException {
+        Counts counts = new Counts();
+        CURRENT.set(counts);
+        try {
+            long start = System.nanoTime();
+            //Como en TrecCovidTopics.parseQueries, en minúsculas
+            QueryParser parser = TrecCovidTopics.newQueryParser();
+            Query query = parser.parse(queryText.toLowerCase());
+            long parsed = System.nanoTime();
+
+            Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.TOP_SCORES, 1f);
+            long weighted = System.nanoTime();
+
+            int numHits = Math.max(1, Math.min(k, searcher.getIndexReader().maxDoc()));
+            CollectorManager<TopScoreDocCollector, TopDocs> manager = TopScoreDocCollector.createSharedManager(numHits, null, totalHitsThreshold);
+            TopScoreDocCollector collector = manager.newCollector();
+            List<SegmentProfile> segments = new ArrayList<>();
+            long scoredDocs = 0;
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                long segmentStart = System.nanoTime();
+                long[] scored = new long[1];
+                try {
+                    LeafCollector leafCollector = new FilterLeafCollector(collector.getLeafCollector(leaf)) {
+                        @Override
+                        public void collect(int doc) throws IOException {
+                            scored[0]++;
+                            in.collect(doc);
+                        }
+                    };
+                    BulkScorer scorer = weight.bulkScorer(leaf);
+                    if (scorer != null) {
+                        scorer.score(leafCollector, leaf.reader().getLiveDocs());
+                    }
+                    leafCollector.finish();
+                } catch (CollectionTerminatedException e) {
+                    //el collector no necesita más documentos de este segmento
+                }
+                segments.add(new SegmentProfile(segmentName(leaf), leaf.reader().maxDoc(), System.nanoTime() - segmentStart, scored[0]));
+                scoredDocs += scored[0];
+            }
+            TopDocs topDocs = manager.reduce(Collections.singletonList(collector));
+            long scoringNanos = System.nanoTime() - weighted;
+
+            Profile profile = new Profile(queryId, query.toString(), parsed - start, weighted - parsed, scoringNanos,
+                    counts.postings, counts.advances, segments, new TopHits(topDocs.scoreDocs, topDocs.totalHits, scoredDocs));
+            synchronized (profiles) {
+                profiles.add(profile);
+            }
+            return profile;
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    private static String segmentName(LeafReaderContext leaf) {
+        LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+        String name = reader instanceof SegmentReader ? ((SegmentReader) reader).getSegmentName() : reader.toString();
+        return leaf.ord + ":" + name;
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    //Queries de la más lenta a la más rápida, con el desglose de tiempos y contadores de cada una
+    public void writeReport(Path file) throws IOException {
+        List<Profile> ranked;
+        synchronized (profiles) {
+            ranked = new ArrayList<>(profiles);
+        }
+        ranked.sort(Comparator.comparingLong(Profile::totalNanos).reversed());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("Queries ordenadas por tiempo total (parseo + createWeight + puntuación), en ms\n");
+            for (int i = 0; i < ranked.size(); i++) {
+                Profile p = ranked.get(i);
+                writer.write("#" + (i + 1) + " query " + p.queryId + ": total " + ms(p.totalNanos()) + " (parseo " + ms(p.parseNanos)
+                        + ", createWeight " + ms(p.createWeightNanos) + ", puntuación " + ms(p.scoringNanos) + ")\n");
+                writer.write("\tQuery parseada: " + p.parsedQuery + "\n");
+                writer.write("\tPostings recorridos: " + p.postings + ", advances: " + p.advances
+                        + ", documentos puntuados: " + p.topHits.scoredDocs() + "\n");
+                for (SegmentProfile segment : p.segments) {
+                    writer.write("\t\tSegmento " + segment.segment + " (" + segment.maxDoc + " docs): " + ms(segment.nanos)
+                            + ", documentos puntuados: " + segment.scoredDocs + "\n");
+                }
+            }
+        }
+    }
+
+    public String summary() {
+        synchronized (profiles) {
+            long parse = 0, weight = 0, scoring = 0;
+            for (Profile p : profiles) {
+                parse += p.parseNanos;
+                weight += p.createWeightNanos;
+                scoring += p.scoringNanos;
+            }
+            return "Profiling (" + profiles.size() + " queries): parseo " + ms(parse) + " ms, createWeight " + ms(weight)
+                    + " ms, puntuación " + ms(scoring) + " ms";
+        }
+    }
+
+    private static final class CountingDirectoryReader extends FilterDirectoryReader {
+
+        private CountingDirectoryReader(DirectoryReader in) throws IOException {
+            super(in, new SubReaderWrapper() {
+                @Override
+                public LeafReader wrap(LeafReader reader) {
+                    return new CountingLeafReader(reader);
+                }
+            });
+        }
+
+        @Override
+        protected DirectoryReader doWrapDirectoryReader(DirectoryReader in) throws IOException {
+            return new CountingDirectoryReader(in);
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return null;
+        }
+    }
+
+    private static final class CountingLeafReader extends FilterLeafReader {
+
+        private CountingLeafReader(LeafReader in) {
+            super(in);
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+            Terms terms = super.terms(field);
+            return terms == null ? null : new FilterTerms(terms) {
+                @Override
+                public TermsEnum iterator() throws IOException {
+                    return new CountingTermsEnum(in.iterator());
+                }
+            };
+        }
+
+        @Override
+        public CacheHelper getCoreCacheHelper() {
+            return null;
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return null;
+        }
+    }
+
+    private static final class CountingTermsEnum extends FilterLeafReader.FilterTermsEnum {
+
+        private CountingTermsEnum(TermsEnum in) {
+            super(in);
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            PostingsEnum delegateReuse = reuse instanceof CountingPostingsEnum ? ((CountingPostingsEnum) reuse).delegate() : reuse;
+            return new CountingPostingsEnum(in.postings(delegateReuse, flags));
+        }
+
+        @Override
+        public ImpactsEnum impacts(int flags) throws IOException {
+            return new CountingImpactsEnum(in.impacts(flags));
+        }
+    }
+
+    //Contadores de la query del thread actual; fuera de profile() (p. ej. al calentar) se descartan
+    private static Counts currentCounts() {
+        Counts current = CURRENT.get();
+        return current != null ? current : new Counts();
+    }
+
+    //PostingsEnum que cuenta sus avances
+    private static final class CountingPostingsEnum extends FilterLeafReader.FilterPostingsEnum {
+        private final Counts counts;
+
+        private CountingPostingsEnum(PostingsEnum in) {
+            super(in);
+            this.counts = currentCounts();
+        }
+
+        private PostingsEnum delegate() {
+            return in;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            counts.postings++;
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            counts.advances++;
+            counts.postings++;
+            return in.advance(target);
+        }
+    }
+
+    //ImpactsEnum, el que usan los scorers de top-K para saltar bloques, que cuenta sus avances
+    private static final class CountingImpactsEnum extends ImpactsEnum {
+        private final ImpactsEnum in;
+        private final Counts counts;
+
+        private CountingImpactsEnum(ImpactsEnum in) {
+            this.in = in;
+            this.counts = currentCounts();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            counts.postings++;
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            counts.advances++;
+            counts.postings++;
+            return in.advance(target);
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return in.freq();
+        }
+
+        @Override
+        public int nextPosition() throws IOException {
+            return in.nextPosition();
+        }
+
+        @Override
+        public int startOffset() throws IOException {
+            return in.startOffset();
+        }
+
+        @Override
+        public int endOffset() throws IOException {
+            return in.endOffset();
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            return in.getPayload();
+        }
+
+        @Override
+        public void advanceShallow(int target) throws IOException {
+            in.advanceShallow(target);
+        }
+
+        @Override
+        public Impacts getImpacts() throws IOException {
+            return in.getImpacts();
+        }
+    }
+}
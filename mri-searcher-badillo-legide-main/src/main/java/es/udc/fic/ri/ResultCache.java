@@ -0,0 +1,240 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Caché en disco de los top-K (docID y score) de cada búsqueda.
+ *
+ * La clave es (índice, generación e id único del commit de cada shard, id de la query, query parseada, similitud
+ * con sus parámetros, K): si el índice cambia, o se borra y se vuelve a crear en la misma ruta con la misma
+ * generación, el id del commit es otro y las entradas antiguas dejan de usarse y acaban saliendo por LRU. Cada entrada es un fichero cuyo nombre es el SHA-256 de la clave; la fecha de modificación
+ * hace de último acceso, así que el orden LRU se conserva entre ejecuciones.
+ */
+public class ResultCache {
+
+    private static final String EXTENSION = ".hits";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String indexKey;
+    //nombre de fichero -> tamaño, en orden de acceso (el primero es el menos usado)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits, misses;
+
+    private ResultCache(Path dir, long maxBytes, String indexKey) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.indexKey = indexKey;
+    }
+
+    public static ResultCache open(Path dir, long maxBytes, Path indexPath, IndexReader reader) throws IOException {
+        Files.createDirectories(dir);
+        ResultCache cache = new ResultCache(dir, maxBytes, indexPath.toAbsolutePath().normalize() + "@" + commitKey(reader));
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            stream.forEach(files::add);
+        }
+        files.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+        for (Path file : files) {
+            long size = Files.size(file);
+            cache.entries.put(file.getFileName().toString(), size);
+            cache.totalBytes += size;
+        }
+        synchronized (cache) {
+            cache.evict();
+        }
+        return cache;
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /*
+     * Generación e id del commit abierto; con shards, los de cada uno. La generación vuelve a empezar si el índice
+     * se crea de nuevo en la misma ruta, pero el id de segments_N es aleatorio y distinto en cada commit.
+     */
+    static String commitKey(IndexReader reader) throws IOException {
+        if (reader instanceof DirectoryReader) {
+            IndexCommit commit = ((DirectoryReader) reader).getIndexCommit();
+            byte[] id = SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName()).getId();
+            return commit.getGeneration() + ":" + StringHelper.idToString(id);
+        }
+        List<String> commits = new ArrayList<>();
+        for (IndexReaderContext child : reader.getContext().children()) {
+            commits.add(commitKey(child.reader()));
+        }
+        return commits.stream().collect(Collectors.joining("-"));
+    }
+
+    private String key(int queryId, Query query, Similarity similarity, int k) {
+        return indexKey + "|" + queryId + "|" + query + "|" + similarity + "|" + k;
+    }
+
+    private static String fileName(String key) {
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(EXTENSION).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //null si no está en la caché
+    public ScoreDoc[] get(int queryId, Query query, Similarity similarity, int k) throws IOException {
+        String key = key(queryId, query, similarity, k);
+        String name = fileName(key);
+        synchronized (this) {
+            if (!entries.containsKey(name)) {
+                misses++;
+                return null;
+            }
+            entries.get(name); //último acceso
+        }
+        Path file = dir.resolve(name);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (!readKey(in, keyBytes.length).equals(key)) {
+                synchronized (this) {
+                    misses++;
+                }
+                return null;
+            }
+            ScoreDoc[] scoreDocs = new ScoreDoc[in.readInt()];
+            for (int i = 0; i < scoreDocs.length; i++) {
+                scoreDocs[i] = new ScoreDoc(in.readInt(), in.readFloat());
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                hits++;
+            }
+            return scoreDocs;
+        } catch (EOFException e) {
+            //entrada truncada o de otro formato: se vuelve a buscar y se sobrescribe
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        } catch (NoSuchFileException e) {
+            //borrada por otra ejecución
+            synchronized (this) {
+                remove(name);
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    public void put(int queryId, Query query, Similarity similarity, int k, ScoreDoc[] scoreDocs) throws IOException {
+        String key = key(queryId, query, similarity, k);
+        String name = fileName(key);
+        //Se escribe en un temporal y se mueve, para que otra ejecución nunca lea una entrada a medias
+        Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            //Longitud y bytes UTF-8: writeUTF no admite claves de más de 64 KB (queries expandidas largas)
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(scoreDocs.length);
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                out.writeInt(scoreDoc.doc);
+                out.writeFloat(scoreDoc.score);
+            }
+        }
+        long size = Files.size(tmp);
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            remove(name);
+            entries.put(name, size);
+            totalBytes += size;
+            evict();
+        }
+    }
+
+    //Clave guardada en la entrada; vacía si no tiene la longitud esperada (colisión o formato antiguo)
+    private static String readKey(DataInputStream in, int expectedLength) throws IOException {
+        if (in.readInt() != expectedLength) {
+            return "";
+        }
+        byte[] keyBytes = new byte[expectedLength];
+        in.readFully(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    //Borra las entradas menos usadas hasta quedar por debajo del tamaño máximo
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            Files.deleteIfExists(dir.resolve(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    //Top-K de la caché si está; si no, busca y lo guarda. Sin caché (null) solo busca.
+    //El umbral de total hits no forma parte de la clave: el top-K no depende de él
+    public static TopHits search(ResultCache cache, IndexSearcher searcher, int queryId, Query query, int k, int totalHitsThreshold) throws IOException {
+        if (cache == null) {
+            return TopHits.search(searcher, query, k, totalHitsThreshold);
+        }
+        ScoreDoc[] scoreDocs = cache.get(queryId, query, searcher.getSimilarity(), k);
+        if (scoreDocs != null) {
+            return TopHits.cached(scoreDocs);
+        }
+        TopHits topHits = TopHits.search(searcher, query, k, totalHitsThreshold);
+        cache.put(queryId, query, searcher.getSimilarity(), k, topHits.scoreDocs());
+        return topHits;
+    }
+
+    public synchronized String summary() {
+        return "Caché de resultados: " + hits + " aciertos, " + misses + " fallos, " + entries.size() + " entradas, "
+                + totalBytes / 1024 + " KB de " + maxBytes / (1024 * 1024) + " MB";
+    }
+}
@@ -1,31 +1,36 @@
 package es.udc.fic.ri;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 public class SearchEvalTrecCovid {
 
@@ -57,51 +62,34 @@ public class SearchEvalTrecCovid {
             throw new IllegalArgumentException("El cut N debe ser válido ( cut > 0 )");
     }
 
+    //"10" o una lista "5,10,100,1000"; se devuelven ordenados y sin repetir
+    private static int[] parseCuts(String cutList){
+        int[] cuts = Arrays.stream(cutList.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).sorted().distinct().toArray();
+        for (int cut : cuts) {
+            validateCut(cut);
+        }
+        return cuts;
+    }
+
     private static void validateTop(int top){
         if (top <= 0 || top > 171332)
             throw new IllegalArgumentException("El top M debe ser válido ( top > 0 && top < 171332)");
     }
 
-    private static List<JsonNode> readQueriesFile() throws IOException {
-        var queriesInputStream = IndexTrecCovid.class.getResourceAsStream("/trec-covid/queries.jsonl");
-        ObjectReader reader = JsonMapper.builder().findAndAddModules().build()
-                .readerFor(JsonNode.class);
-        List<JsonNode> queriesList = null;
-        try{
-            queriesList = reader.<JsonNode>readValues(queriesInputStream).readAll();
-        }catch(IOException e){
-            e.printStackTrace();
-        }
-        if(queriesInputStream != null)
-            queriesInputStream.close();
-
-        return queriesList;
+    private static void validateThreads(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("El número de threads debe ser mayor que 0");
     }
 
-    private static Map<String, Map<String, Integer>> readRelevanceFile() {
-        InputStream judgmentsInputStream = IndexTrecCovid.class.getResourceAsStream("/trec-covid/qrels/test.tsv");
-        Map<String, Map<String, Integer>> judgments = new HashMap<>();
-        if (judgmentsInputStream != null) {
-            try (BufferedReader buffer = new BufferedReader(new InputStreamReader(judgmentsInputStream))) {
-                String line = buffer.readLine();  //Para saltarse la primera linea
-                while ((line = buffer.readLine()) != null) {
-                    String[] parts = line.split("\t"); // Dividir la línea utilizando el carácter de tabulación como delimitador
-                    String queryId = parts[0]; // El queryID está en la primera columna
-                    String docId = parts[1]; // El docID está en la segunda columna
-                    int relevance = Integer.parseInt(parts[2]); // Suponiendo que la relevancia está en la tercera columna
-                    // Verificar si ya existe una entrada para este queryID, si no, crear una nueva
-                    if (!judgments.containsKey(queryId)) {
-                        judgments.put(queryId, new HashMap<>());
-                    }
-                    judgments.get(queryId).put(docId, relevance); // Almacenar la relevancia para el documento y el query correspondientes
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return judgments;
+    private static void validateSlices(int maxDocs, int maxSegments){
+        if(maxDocs <= 0 || maxSegments <= 0)
+            throw new IllegalArgumentException("Los slices deben tener al menos un documento y un segmento");
     }
 
+    private static void validateCacheSize(int megabytes){
+        if(megabytes <= 0)
+            throw new IllegalArgumentException("El tamaño de la caché (MB) debe ser mayor que 0");
+    }
 
     private static int [] validateRange(String range){
         if(range.equals("all")){
@@ -134,274 +122,314 @@ public class SearchEvalTrecCovid {
         return numeros;
     }
 
-    private static boolean isRelevant(String queryId, String docId, Map<String, Map<String, Integer>> relevanceMap) {
-        return relevanceMap.get(queryId).getOrDefault(docId,0) != 0;
-    }
-
-    private static double getPrecision(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-        int relevantRetrieved = 0;
-
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
-
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-            }
+    //Resultado de una query: métricas e informe ya formateado para la consola y para el .txt
+    private static final class QueryRun {
+        private final int queryId;
+        private final QueryEvaluator.Result[] results; //uno por corte
+        private final long searchNanos;
+        private final TopHits topHits;
+        private QueryEvaluator.Result[] firstStageResults; //solo en cascada: métricas antes del re-ranking
+        private final StringBuilder console = new StringBuilder();
+        private final StringBuilder txt = new StringBuilder();
+
+        private QueryRun(int queryId, QueryEvaluator.Result[] results, long searchNanos, TopHits topHits) {
+            this.queryId = queryId;
+            this.results = results;
+            this.searchNanos = searchNanos;
+            this.topHits = topHits;
         }
 
-        return (double) relevantRetrieved / Math.min(cut, hits.length);
+        //Línea que va a la consola y al fichero
+        private void both(String line) {
+            consoleOnly(line);
+            txt.append(line).append('\n');
+        }
 
+        private void consoleOnly(String line) {
+            console.append(line).append(System.lineSeparator());
+        }
     }
 
-    private static double getAP(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-        int relevantRetrieved = 0;
-        double precisionSum = 0;
+    //Con un solo corte las métricas se muestran como P@n, Recall@n...; con varios, P@5, P@10...
+    private static String cutLabel(int[] cuts, int k){
+        return cuts.length == 1 ? "n" : String.valueOf(cuts[k]);
+    }
 
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
+    private static String rrLabel(int[] cuts, int k){
+        return cuts.length == 1 ? "RR" : "RR@" + cuts[k];
+    }
 
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-                precisionSum += (double) relevantRetrieved / (i + 1);
-            }
+    //Con -fields solo se leen esos campos almacenados (el visitor se salta los demás, p.ej. text); si no, todos
+    private static Document loadDocument(StoredFields storedFields, int docId, Set<String> fields) throws IOException {
+        if (fields == null) {
+            return storedFields.document(docId);
         }
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+        storedFields.document(docId, visitor);
+        return visitor.getDocument();
+    }
 
-        if (relevantRetrieved > 0) {
-            return precisionSum / relevantRetrieved;
-        } else {
-            return 0.0;
-        }
+    //"1234" si el total es exacto, ">= 1000" si es una cota inferior (a partir del umbral), "en caché" si no se buscó
+    private static String totalHitsLabel(TotalHits totalHits){
+        if (totalHits == null)
+            return "en caché";
+        return (totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO ? ">= " : "") + totalHits.value;
     }
 
-    private static double getRecall(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
+    private static void formatReport(QueryRun run, TrecCovidTopics topics, int top, ScoreDoc[] hits, IndexSearcher indexSearcher, int[] cuts,
+                                     Set<String> fields, boolean showTotalHits) throws IOException {
 
-        int relevantRetrieved = 0;
-        int totalRelevant = 0;
+        int id = run.queryId;
+        //La relevancia y el _id de cada hit no dependen del corte
+        QueryEvaluator.Result result = run.results[run.results.length - 1];
+        //Obtener query original y parseada
+        String queryString = topics.getQuery(id).toLowerCase(); //Para asegurar problemas con requerimientos booleanos
+        Query parsedQuery = topics.getParsedQuery(id);
 
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
+        run.both("---------------------------------------------------------------------------------------------------------------------------");
+        run.both("Query original: " + queryString);
+        run.both("Query parseada: " + parsedQuery.toString());
 
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-            }
-        }
 
-        Map<String, Integer> queryRelevanceMap = relevanceMap.get(String.valueOf(queryId));
+        if (hits.length > 0) {
+            StoredFields storedFields = indexSearcher.storedFields();
+            for (int i = 0; i < Math.min(hits.length, top); i++) {
 
-        if (queryRelevanceMap != null) {
-            for(Integer m : queryRelevanceMap.values()){
-                if(m != 0){
-                    totalRelevant++;
-                }
+                String relevancia;
+                //Solo se cargan los documentos que se muestran; el _id y la relevancia ya los tiene el evaluador
+                Document doc = loadDocument(storedFields, hits[i].doc, fields);
 
-            }
-        }
+                if(result.isRelevant(i)){
+                    relevancia = "Sí";
+                }else{
+                    relevancia = "No";
+                }
 
-        if (totalRelevant != 0) {
-            return (double) relevantRetrieved / totalRelevant;
-        } else {
-            return 0.0;
-        }
+                run.both("\tDocumento: " + i);
+                run.both("\t\tDocID: " + result.id(i));
+                run.both("\t\tScore: " + hits[i].score);
+                run.consoleOnly("\t\tCampos del índice:");
+                run.txt.append("\t\tCampos del índice\n");
 
-    }
+                for(IndexableField field : doc.getFields()){
+                    run.both("\t\t\t" + field.name() + ": " + field.stringValue());
+                }
+                run.both("\t\tRelevante: " + relevancia);
+            }
 
-    private static double getRR(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
+            run.both("===========================================================================================================================");
+            run.both("Métricas para la query " + id + ":");
+            for (int k = 0; k < cuts.length; k++) {
+                String n = cutLabel(cuts, k);
+                run.both("  P@" + n + " : " + run.results[k].precision());
+                run.both("  Recall@" + n + " : " + run.results[k].recall());
+                run.both("  AP@" + n + " : " + run.results[k].averagePrecision());
+                run.both("  " + rrLabel(cuts, k) + " : " + run.results[k].reciprocalRank());
+            }
+            //Con -totalhits: coste de la búsqueda junto a las métricas
+            if (showTotalHits) {
+                run.both("  Total hits : " + totalHitsLabel(run.topHits.totalHits()));
+                run.both("  Documentos puntuados : " + (run.topHits.fromCache() ? "en caché" : String.valueOf(run.topHits.scoredDocs())));
+            }
 
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
 
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                return 1.0 / (i + 1);
-            }
+        }else{
+            run.consoleOnly("No hay documentos recuperados para la query");
         }
 
-        return 0.0;
     }
 
-    private static Query parseQueryForId(int id, List<JsonNode> queryList) throws ParseException {
-
-        String queryString;
-        String queryId;
-
-        for(JsonNode queryNode : queryList){
-            queryString = queryNode.get("metadata").get("query").asText();
-            queryString = queryString.toLowerCase(); //Para asegurar problemas con requerimientos booleanos
-            queryId = queryNode.get("_id").asText();
-
-            if(id == Integer.parseInt(queryId)){
-                return new QueryParser("text", new StandardAnalyzer()).parse(queryString);
+    //Busca, evalúa y formatea el informe de una query; se puede ejecutar en paralelo con las demás
+    private static QueryRun runQuery(int queryId, IndexSearcher indexSearcher, QueryEvaluator evaluator, int[] cuts, int top, TrecCovidTopics topics,
+                                     ResultCache cache, Set<String> fields, int totalHitsThreshold, QueryProfiler profiler,
+                                     CascadeSearch cascade) throws IOException {
+        Query query = topics.getParsedQuery(queryId);
+        int threshold = totalHitsThreshold < 0 ? TopHits.DEFAULT_TOTAL_HITS_THRESHOLD : totalHitsThreshold;
+        long start = System.nanoTime();
+        //Una sola búsqueda hasta el corte mayor (o su resultado de la caché). Con -profiling se parsea y se busca
+        //segmento a segmento midiendo cada fase, sin caché. Con -rerank, primera fase y re-ranking de los candidatos
+        TopHits topHits;
+        CascadeSearch.Result cascadeResult = null;
+        if (cascade != null) {
+            cascadeResult = cascade.search(queryId, query, cuts[cuts.length - 1], threshold);
+            topHits = cascadeResult.topHits();
+        } else if (profiler == null) {
+            topHits = ResultCache.search(cache, indexSearcher, queryId, query, cuts[cuts.length - 1], threshold);
+        } else {
+            try {
+                topHits = profiler.profile(queryId, topics.getQuery(queryId), cuts[cuts.length - 1], threshold).topHits();
+            } catch (ParseException e) {
+                throw new IOException("Error al parsear la query " + queryId, e);
             }
         }
+        long searchNanos = System.nanoTime() - start;
+        ScoreDoc[] hits = topHits.scoreDocs();
 
-        return null;
-
+        //Todas las métricas de todos los cortes en una pasada por los hits
+        QueryRun run = new QueryRun(queryId, evaluator.evaluate(queryId, hits, cuts), searchNanos, topHits);
+        if (cascadeResult != null) {
+            run.firstStageResults = evaluator.evaluate(queryId, cascadeResult.firstStage().scoreDocs(), cuts);
+        }
+        formatReport(run, topics, top, hits, indexSearcher, cuts, fields, totalHitsThreshold >= 0);
+        return run;
     }
 
-    private static void printAndWriteTxt(List<JsonNode> queryList, int top, ScoreDoc[] hits, int id, String fileName, IndexSearcher indexSearcher, Map<String, Map<String, Integer>> relevanceMap,
-                                         double valueP, double valueR, double valueRR, double valueAP) throws ParseException{
+    //Recibe cada QueryRun en orden de id; después se descarta
+    private interface QueryRunHandler {
+        void handle(QueryRun run) throws IOException;
+    }
 
-        String queryString = "";
-        String queryId;
-        Query parsedQuery=null;
-        //Obtener query original y parseada
-        for(JsonNode queryNode : queryList){
-            queryString = queryNode.get("metadata").get("query").asText();
-            queryString = queryString.toLowerCase(); //Para asegurar problemas con requerimientos booleanos
-            queryId = queryNode.get("_id").asText();
-
-            if(id == Integer.parseInt(queryId)){
-                QueryParser parser = new QueryParser("text", new StandardAnalyzer());
-                parsedQuery = parser.parse(queryString);
-                break;
+    /*
+     * Las queries del rango en orden de id; con más de un thread se ejecutan a la vez contra el mismo IndexSearcher.
+     * Cada QueryRun se entrega en cuanto ella y todas las anteriores han terminado. Como mucho hay 2 * threads
+     * queries en curso o esperando su turno, así que la memoria no crece con el número de queries.
+     */
+    private static void runQueries(IndexSearcher indexSearcher, QueryEvaluator evaluator, int minQueryId, int maxQueryId, int[] cuts, int top,
+                                   TrecCovidTopics topics, int threads, ResultCache cache, Set<String> fields, int totalHitsThreshold,
+                                   QueryProfiler profiler, CascadeSearch cascade, QueryRunHandler handler) throws IOException {
+        if (threads == 1) {
+            for (int queryId = minQueryId; queryId <= maxQueryId; queryId++) {
+                handler.handle(runQuery(queryId, indexSearcher, evaluator, cuts, top, topics, cache, fields, totalHitsThreshold, profiler, cascade));
             }
+            return;
         }
 
-        try{
-            BufferedWriter writer = new BufferedWriter(new FileWriter( "src/main/resources/searchEval/" + fileName, true));
-            System.out.println("---------------------------------------------------------------------------------------------------------------------------");
-            writer.write("---------------------------------------------------------------------------------------------------------------------------\n");
-            System.out.println("Query original: " + queryString);
-            writer.write("Query original: " + queryString + "\n");
-            System.out.println("Query parseada: " + parsedQuery.toString());
-            writer.write("Query parseada: " + parsedQuery.toString() + "\n");
-
-
-            if (hits.length > 0) {
-                for (int i = 0; i < Math.min(hits.length, top); i++) {
-
-                    String relevancia;
-                    Document doc = indexSearcher.storedFields().document(hits[i].doc);
-
-                    if(isRelevant(String.valueOf(id),String.valueOf(doc.get("_id")),relevanceMap )){
-                        relevancia = "Sí";
-                    }else{
-                        relevancia = "No";
-                    }
-
-
-
-                    System.out.println("\tDocumento: " + i);
-                    writer.write("\tDocumento: " + i + "\n");
-                    System.out.println("\t\tDocID: " + doc.get("_id"));
-                    writer.write("\t\tDocID: " + doc.get("_id") + "\n");
-                    System.out.println("\t\tScore: " + hits[i].score);
-                    writer.write("\t\tScore: " + hits[i].score + "\n");
-                    System.out.println("\t\tCampos del índice:");
-                    writer.write("\t\tCampos del índice\n");
-
-                    for(IndexableField field : doc.getFields()){
-                        System.out.println("\t\t\t" + field.name() + ": " + field.stringValue());
-                        writer.write("\t\t\t" + field.name() + ": " + field.stringValue() + "\n");
-                    }
-                    System.out.println("\t\tRelevante: " + relevancia);
-                    writer.write("\t\tRelevante: " + relevancia + "\n");
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "query-eval");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            int window = 2 * threads;
+            Deque<Future<QueryRun>> pending = new ArrayDeque<>();
+            int nextId = minQueryId;
+            while (nextId <= maxQueryId || !pending.isEmpty()) {
+                while (nextId <= maxQueryId && pending.size() < window) {
+                    int id = nextId++;
+                    pending.addLast(queryExecutor.submit(() -> runQuery(id, indexSearcher, evaluator, cuts, top, topics, cache, fields, totalHitsThreshold, profiler, cascade)));
                 }
-
-                System.out.println("===========================================================================================================================");
-                writer.write("===========================================================================================================================\n");
-                System.out.println("Métricas para la query " + id + ":");
-                writer.write("Métricas para la query " + id + ":\n");
-                System.out.println("  P@n : " + valueP);
-                writer.write("  P@n : " + valueP + "\n");
-                System.out.println("  Recall@n : " + valueR);
-                writer.write("  Recall@n : " + valueR + "\n");
-                System.out.println("  AP@n : " + valueAP);
-                writer.write("  AP@n : " + valueAP + "\n");
-                System.out.println("  RR : " + valueRR);
-                writer.write("  RR : " + valueRR + "\n");
-
-
-            }else{
-                System.out.println("No hay documentos recuperados para la query");
+                //Se recogen en el orden en que se enviaron, no en el que terminan
+                handler.handle(pending.removeFirst().get());
             }
-            writer.close();
-
-        }catch (IOException e){
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Evaluación interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al evaluar una query", e.getCause());
+        } finally {
+            queryExecutor.shutdownNow();
         }
-
-
-
     }
 
-    private static void writeMeanValuesTxt(double avgP, double avgR, double avgRR, double avgAP, String fileName){
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter( "src/main/resources/searchEval/" + fileName, true))){
-            System.out.println(".................................................................................................................");
-            writer.write(".................................................................................................................\n");
-            System.out.println("Promedio de P@n (MP): " + avgP);
-            writer.write("Promedio de P@n (MP): " + avgP + "\n");
-            System.out.println("Promedio de Recall@n (MR): " + avgR);
-            writer.write("Promedio de Recall@n (MR): " + avgR + "\n");
-            System.out.println("Promedio de RR (MRR): " + avgRR);
-            writer.write("Promedio de RR (MRR): " + avgRR + "\n");
-            System.out.println("Promedio de AP@n (MAP@n): " + avgAP);
-            writer.write("Promedio de AP@n (MAP@n): " + avgAP + "\n");
-
-
-        }catch (IOException e){
-            e.printStackTrace();
-        }
+    private static void writeMeanValuesTxt(double avgP, double avgR, double avgRR, double avgAP, AsyncReportWriter report, String n, String rr) throws IOException {
+        report.writeLine(".................................................................................................................");
+        report.writeLine("Promedio de P@" + n + " (MP): " + avgP);
+        report.writeLine("Promedio de Recall@" + n + " (MR): " + avgR);
+        report.writeLine("Promedio de " + rr + " (MRR): " + avgRR);
+        report.writeLine("Promedio de AP@" + n + " (MAP@" + n + "): " + avgAP);
     }
 
-    private static Map<String, String> searchAndEval(IndexSearcher indexSearcher, int minQueryId, int maxQueryId, int cut, int top, List<JsonNode> queriesList , Map<String, Map<String, Integer>> relevanceMap, String fileNameText) throws IOException, ParseException {
+    private static Map<String, String> searchAndEval(IndexSearcher indexSearcher, int minQueryId, int maxQueryId, int[] cuts, int top, TrecCovidTopics topics, Judgments judgments, String fileNameText, int threads,
+                                                     QueryLatencies latencies, TrecRunWriter runWriter, ResultCache cache, Set<String> fields,
+                                                     int totalHitsThreshold, QueryProfiler profiler, CascadeSearch cascade) throws IOException {
 
-        double cP = 0, cR = 0, cAP = 0, cRR = 0;
-        double valueP, valueR, valueAP, valueRR, totalP = 0.0, totalR = 0.0, totalAP = 0.0, totalRR = 0.0, avgP, avgR, avgAP, avgRR;
-        String newLine;
+        //Por corte: número de queries con valor > 0 y suma de P, Recall, RR y AP
+        double[] cP = new double[cuts.length], cR = new double[cuts.length], cAP = new double[cuts.length], cRR = new double[cuts.length];
+        double[] totalP = new double[cuts.length], totalR = new double[cuts.length], totalAP = new double[cuts.length], totalRR = new double[cuts.length];
+        //Lo mismo para P y AP de la primera fase, con -rerank
+        double[] cFirstP = new double[cuts.length], cFirstAP = new double[cuts.length], totalFirstP = new double[cuts.length], totalFirstAP = new double[cuts.length];
+        double avgP, avgR, avgAP, avgRR;
         Map<String, String> linesCSV = new HashMap<>();
 
-        linesCSV.put("cut"+cut, "cut"+cut + ",P@n,Recall,RR,AP@n");
-
-        // Si -all -> 0-50, si int1 int1-int1, int1-int2
-        for (int queryId = minQueryId; queryId <= maxQueryId; queryId++) {
-            Query query = parseQueryForId(queryId, queriesList);
-            TopDocs topDocs = indexSearcher.search(query, cut);
-            ScoreDoc[] hits = topDocs.scoreDocs;
-
-            valueP = getPrecision(hits, cut, relevanceMap, indexSearcher, queryId);
-            valueR = getRecall(hits, cut, relevanceMap, indexSearcher, queryId);
-            valueRR = getRR(hits, cut, relevanceMap, indexSearcher, queryId);
-            valueAP = getAP(hits, cut, relevanceMap, indexSearcher, queryId);
+        if (cuts.length == 1) {
+            linesCSV.put("cabecera", "cut" + cuts[0] + ",P@n,Recall,RR,AP@n");
+        } else {
+            //Una columna por métrica y corte
+            StringBuilder header = new StringBuilder("cuts");
+            for (int cut : cuts) {
+                header.append(",P@").append(cut).append(",Recall@").append(cut).append(",RR@").append(cut).append(",AP@").append(cut);
+            }
+            linesCSV.put("cabecera", header.toString());
+        }
+        QueryEvaluator evaluator = new QueryEvaluator(indexSearcher, judgments);
+
+        //Los promedios y los informes se escriben en orden de id, igual que en una ejecución secuencial, según va
+        //terminando cada query. Consola y .txt se escriben en otro thread mientras se agregan las métricas
+        try(AsyncReportWriter report = new AsyncReportWriter(Paths.get("src/main/resources/searchEval/" + fileNameText))){
+            // Si -all -> 0-50, si int1 int1-int1, int1-int2
+            runQueries(indexSearcher, evaluator, minQueryId, maxQueryId, cuts, top, topics, threads, cache, fields, totalHitsThreshold, profiler, cascade, run -> {
+                //Las queries servidas por la caché no cuentan para la latencia ni para los documentos puntuados
+                if (!run.topHits.fromCache()) {
+                    latencies.record(run.queryId, run.searchNanos, run.topHits.scoredDocs());
+                }
+                StringBuilder newLine = new StringBuilder().append(run.queryId);
+                for (int k = 0; k < cuts.length; k++) {
+                    QueryEvaluator.Result result = run.results[k];
+                    double valueP = result.precision();
+                    double valueR = result.recall();
+                    double valueRR = result.reciprocalRank();
+                    double valueAP = result.averagePrecision();
+
+                    newLine.append(",").append(valueP).append(",").append(valueR).append(",").append(valueRR).append(",").append(valueAP);
+
+                    if (valueP > 0) { totalP[k] += valueP; cP[k]++; }
+                    if (valueR > 0) { totalR[k] += valueR; cR[k]++; }
+                    if (valueRR > 0) { totalRR[k] += valueRR; cRR[k]++; }
+                    if (valueAP > 0) { totalAP[k] += valueAP; cAP[k]++; }
+
+                    if (run.firstStageResults != null) {
+                        double firstP = run.firstStageResults[k].precision(), firstAP = run.firstStageResults[k].averagePrecision();
+                        if (firstP > 0) { totalFirstP[k] += firstP; cFirstP[k]++; }
+                        if (firstAP > 0) { totalFirstAP[k] += firstAP; cFirstAP[k]++; }
+                    }
+                }
 
-            newLine = queryId + "," + valueP + "," + valueR + "," + valueRR + "," + valueAP;
+                // Actualizar el valor en el mapa
+                linesCSV.put(String.valueOf(run.queryId), newLine.toString());
 
-            // Actualizar el valor en el mapa
-            linesCSV.put(String.valueOf(queryId), newLine);
+                //Ranking completo hasta el corte mayor en la run de TREC
+                if (runWriter != null) {
+                    runWriter.write(run.queryId, run.results[run.results.length - 1]);
+                }
 
-            if (valueP > 0) { totalP += valueP; cP++; }
-            if (valueR > 0) { totalR += valueR; cR++; }
-            if (valueRR > 0) { totalRR += valueRR; cRR++; }
-            if (valueAP > 0) { totalAP += valueAP; cAP++; }
+                //imprimir documentos
+                report.write(run.console, run.txt);
+            });
 
-            //imprimir documentos
-            printAndWriteTxt(queriesList, top, hits, queryId, fileNameText, indexSearcher, relevanceMap, valueP, valueR, valueRR, valueAP);
+            StringBuilder promedios = new StringBuilder("promedios");
+            for (int k = 0; k < cuts.length; k++) {
+                if(cP[k] > 0){ avgP = totalP[k]/cP[k]; }else{ avgP = 0.0; }
+                if(cR[k] > 0){ avgR = totalR[k]/cR[k]; }else{ avgR = 0.0; }
+                if(cAP[k] > 0){ avgAP = totalAP[k]/cAP[k];}else{ avgAP = 0.0; }
+                if(cRR[k] > 0){ avgRR = totalRR[k]/cRR[k];}else{ avgRR = 0.0; }
 
+                writeMeanValuesTxt(avgP, avgR, avgRR, avgAP, report, cutLabel(cuts, k), rrLabel(cuts, k));
+                promedios.append(",").append(avgP).append(",").append(avgR).append(",").append(avgRR).append(",").append(avgAP);
+            }
+            linesCSV.put("promedios", promedios.toString());
+
+            //Efectividad de la primera fase sola, para comparar con la de la cascada
+            if (cascade != null) {
+                report.writeLine(".................................................................................................................");
+                for (int k = 0; k < cuts.length; k++) {
+                    String n = cutLabel(cuts, k);
+                    report.writeLine("Primera fase sin re-ranking: Promedio de P@" + n + " (MP): " + (cFirstP[k] > 0 ? totalFirstP[k] / cFirstP[k] : 0.0)
+                            + ", Promedio de AP@" + n + " (MAP@" + n + "): " + (cFirstAP[k] > 0 ? totalFirstAP[k] / cFirstAP[k] : 0.0));
+                }
+            }
+        }catch (IOException e){
+            e.printStackTrace();
         }
 
-        if(cP > 0){ avgP = totalP/cP; }else{ avgP = 0.0; }
-        if(cR > 0){ avgR = totalR/cR; }else{ avgR = 0.0; }
-        if(cAP > 0){ avgAP = totalAP/cAP;}else{ avgAP = 0.0; }
-        if(cRR > 0){ avgRR = totalRR/cRR;}else{ avgRR = 0.0; }
-
-        writeMeanValuesTxt(avgP, avgR, avgRR, avgAP, fileNameText);
-
-        //guardar metricas promediadas
-        linesCSV.put("promedios","promedios," + avgP + "," + avgR + "," + avgRR + "," + avgAP);
-
         return linesCSV;
 
     }
 
-    private static void writeCSV(Map<String, String> linesCSV , int min1, int max1, String fileName, int cut) throws IOException {
+    private static void writeCSV(Map<String, String> linesCSV , int min1, int max1, String fileName) throws IOException {
 
        try(BufferedWriter writer = new BufferedWriter(new FileWriter( "src/main/resources/searchEval/" + fileName))){
            //Primera linea
-           writer.write(linesCSV.get("cut"+cut) + "\r\n");
+           writer.write(linesCSV.get("cabecera") + "\r\n");
            //Cuerpo
            for(int i = min1; i <= max1; i++){
                writer.write(linesCSV.get(String.valueOf(i)) + "\r\n" );
@@ -417,10 +445,22 @@ public class SearchEvalTrecCovid {
 
     public static void main( String[] args ) throws IOException, ParseException {
 
-        String usage = "-search [jm LAMBDA | bm25 K1] -index INDEXPATH -cut N -top M -queries [all | int1 | int1-int2] ";
-        String searchModel = null, indexPath = null, queries = null;
+        String usage = "-search [jm LAMBDA | bm25 K1] -index INDEXPATH -cut N[,N2,...] -top M -queries [all | int1 | int1-int2] [-threads N] [-intraquery N] [-slices MAXDOCS MAXSEGMENTS] [-runfile FILE] [-cache DIR [-cachesize MB]] [-fields F1,F2,...] [-totalhits N | exact] [-profiling] [-rerank jm LAMBDA | bm25 K1 [-rerankdepth K] [-rerankweight W]] [-topics COMPILED]";
+        String searchModel = null, indexPath = null, queries = null, runFile = null, cacheDir = null;
+        int cacheSizeMB = 256;
+        Path topicsPath = TrecCovidTopics.COMPILED_PATH;
+        Set<String> fields = null;
+        int totalHitsThreshold = -1; //sin -totalhits: el umbral de IndexSearcher.search
+        boolean profiling = false;
+        String rerankModel = null;
+        float rerankValue = 0;
+        int rerankDepth = 100;
+        double rerankWeight = Double.NaN; //sin -rerankweight el score final es solo el de la segunda fase
         float searchValue = 0;
-        int cut = -1, top = -1;
+        int[] cuts = null;
+        int top = -1;
+        int threads = 1;
+        int intraQuery = 0, sliceDocs = 0, sliceSegments = 0;
         int [] range;
         int minQueryId, maxQueryId;
 
@@ -436,8 +476,7 @@ public class SearchEvalTrecCovid {
                     validateIndexPath(indexPath);
                     break;
                 case "-cut":
-                    cut = Integer.parseInt(args[++i]);
-                    validateCut(cut);
+                    cuts = parseCuts(args[++i]);
                     break;
                 case "-top":
                     top = Integer.parseInt(args[++i]);
@@ -446,52 +485,151 @@ public class SearchEvalTrecCovid {
                 case "-queries":
                     queries = args[++i];
                     break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    validateThreads(threads);
+                    break;
+                case "-intraquery":
+                    intraQuery = Integer.parseInt(args[++i]);
+                    validateThreads(intraQuery);
+                    break;
+                case "-cache":
+                    cacheDir = args[++i];
+                    break;
+                case "-cachesize":
+                    cacheSizeMB = Integer.parseInt(args[++i]);
+                    validateCacheSize(cacheSizeMB);
+                    break;
+                case "-fields":
+                    //Informe compacto: solo estos campos almacenados de cada documento
+                    fields = new LinkedHashSet<>(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "-totalhits":
+                    //Hits que se cuentan exactamente antes de permitir early termination (block-max WAND)
+                    totalHitsThreshold = TopHits.parseThreshold(args[++i]);
+                    break;
+                case "-profiling":
+                    profiling = true;
+                    break;
+                case "-rerank":
+                    //Cascada: la similitud de -search recupera los candidatos y esta los vuelve a puntuar
+                    rerankModel = args[++i];
+                    rerankValue = Float.parseFloat(args[++i]);
+                    validateSearchModel(rerankModel, rerankValue);
+                    break;
+                case "-rerankdepth":
+                    rerankDepth = Integer.parseInt(args[++i]);
+                    validateCut(rerankDepth);
+                    break;
+                case "-rerankweight":
+                    rerankWeight = Double.parseDouble(args[++i]);
+                    break;
+                case "-runfile":
+                    runFile = args[++i];
+                    break;
+                case "-topics":
+                    //Binario compilado con CompileTrecCovid -out
+                    topicsPath = TrecCovidTopics.compiledPath(args[++i]);
+                    break;
+                case "-slices":
+                    sliceDocs = Integer.parseInt(args[++i]);
+                    sliceSegments = Integer.parseInt(args[++i]);
+                    validateSlices(sliceDocs, sliceSegments);
+                    break;
 
                 default:
                     throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
             }
         }
 
-        if (searchModel == null ||indexPath == null || cut == -1 || top == -1 || queries == null) {
+        if (searchModel == null ||indexPath == null || cuts == null || top == -1 || queries == null) {
             System.out.println("Usage: " + usage);
             System.exit(1);
         }
         range = validateRange(queries);
+        if (rerankModel != null && profiling) {
+            throw new IllegalArgumentException("-profiling y -rerank no se pueden usar a la vez");
+        }
+        if (rerankModel != null && rerankDepth < cuts[cuts.length - 1]) {
+            throw new IllegalArgumentException("El número de candidatos del re-ranking debe ser al menos el corte mayor");
+        }
         minQueryId = range[0];
         maxQueryId = range[1];
         Map<String, String> linesCSV;
 
         IndexReader indexReader = null;
 
-        try(Directory dir = FSDirectory.open(Paths.get(indexPath))){
-            indexReader = DirectoryReader.open(dir);
-            IndexSearcher indexSearcher = new IndexSearcher(indexReader);
+        ExecutorService executor = null;
+
+        try{
+            //Índice único o repartido en shards: se busca en todos a la vez con las estadísticas del corpus completo.
+            //Con -intraquery los slices de cada query se buscan en paralelo en un pool compartido
+            indexReader = ShardedIndex.open(Paths.get(indexPath));
+            executor = ShardedIndex.newExecutor(indexReader, intraQuery);
+            IndexSearcher indexSearcher = ShardedIndex.newSearcher(indexReader, executor, sliceDocs, sliceSegments);
 
             indexSearcher.setSimilarity(
                     searchModel.equals("jm") ? new LMJelinekMercerSimilarity(searchValue) : new BM25Similarity(searchValue, 0.75f)
             );
 
-            List<JsonNode> queriesList = readQueriesFile();
-            Map<String,Map<String , Integer>> judgments = readRelevanceFile();
+            //Binario compilado con CompileTrecCovid si existe; si no, queries.jsonl y qrels/test.tsv
+            //Las queries se parsean una vez al arrancar
+            TrecCovidTopics topics = TrecCovidTopics.load(topicsPath).parseQueries();
+            Judgments judgments = Judgments.build(indexReader, topics);
 
+            //Con -rerank: TREC-COVID.bm25...k1.1.2.rerank.jm.0.1.d100.qall...
+            String rerankName = rerankModel == null ? "" : ".rerank." + rerankModel + "." + rerankValue + ".d" + rerankDepth
+                    + (Double.isNaN(rerankWeight) ? "" : ".w" + rerankWeight);
             String fileNameTxt = searchModel.equals("jm") ?
-                    "TREC-COVID." + searchModel + "." + top + ".hits.lambda." + searchValue + ".q" + queries + ".txt" :
-                    "TREC-COVID." + searchModel + "." + top + ".hits.k1." + searchValue + ".q" + queries + ".txt";
-
-
-            linesCSV = searchAndEval(indexSearcher, minQueryId,maxQueryId,cut,top,queriesList, judgments, fileNameTxt);
+                    "TREC-COVID." + searchModel + "." + top + ".hits.lambda." + searchValue + rerankName + ".q" + queries + ".txt" :
+                    "TREC-COVID." + searchModel + "." + top + ".hits.k1." + searchValue + rerankName + ".q" + queries + ".txt";
+
+
+            QueryLatencies latencies = new QueryLatencies();
+            //Desglose de tiempos y contadores de cada query, solo si se pide
+            QueryProfiler profiler = profiling ? new QueryProfiler(indexReader, indexSearcher.getSimilarity()) : null;
+            CascadeSearch cascade = rerankModel == null ? null : new CascadeSearch(indexSearcher,
+                    rerankModel.equals("jm") ? new LMJelinekMercerSimilarity(rerankValue) : new BM25Similarity(rerankValue, 0.75f),
+                    rerankDepth, rerankWeight);
+            //Top-K ya calculados con el mismo commit del índice, query, similitud y K
+            ResultCache cache = cacheDir != null ?
+                    ResultCache.open(Paths.get(cacheDir), cacheSizeMB * 1024L * 1024L, Paths.get(indexPath), indexReader) : null;
+            //Run de TREC para evaluarla con trec_eval o TrecEval sin volver a buscar
+            String runTag = "TREC-COVID." + searchModel + (searchModel.equals("jm") ? ".lambda." : ".k1.") + searchValue + rerankName;
+            try (TrecRunWriter runWriter = runFile != null ? new TrecRunWriter(Paths.get(runFile), runTag) : null) {
+                linesCSV = searchAndEval(indexSearcher, minQueryId,maxQueryId,cuts,top,topics, judgments, fileNameTxt, threads, latencies, runWriter, cache, fields, totalHitsThreshold, profiler, cascade);
+            }
 
+            //Con varios cortes: TREC-COVID.bm25.5-10-100.cut...
+            String cut = Arrays.stream(cuts).mapToObj(String::valueOf).collect(Collectors.joining("-"));
             String fileNameCSV = searchModel.equals("jm") ?
-                    "TREC-COVID." + searchModel + "." + cut + ".cut" + ".lambda." + searchValue + ".q" + queries + ".csv" :
-                    "TREC-COVID." + searchModel + "." + cut + ".cut" + ".k1." + searchValue + ".q" + queries + ".csv";
-
-            writeCSV(linesCSV, minQueryId, maxQueryId,fileNameCSV , cut);
+                    "TREC-COVID." + searchModel + "." + cut + ".cut" + ".lambda." + searchValue + rerankName + ".q" + queries + ".csv" :
+                    "TREC-COVID." + searchModel + "." + cut + ".cut" + ".k1." + searchValue + rerankName + ".q" + queries + ".csv";
+
+            writeCSV(linesCSV, minQueryId, maxQueryId,fileNameCSV);
+
+            //Latencia de cada búsqueda en un CSV aparte, para no cambiar el de métricas
+            System.out.println(latencies.summary());
+            System.out.println(latencies.scoredDocsSummary() + " (umbral de total hits: "
+                    + TopHits.thresholdLabel(totalHitsThreshold < 0 ? TopHits.DEFAULT_TOTAL_HITS_THRESHOLD : totalHitsThreshold) + ")");
+            if (cascade != null)
+                System.out.println(cascade.summary());
+            if (cache != null)
+                System.out.println(cache.summary());
+            latencies.writeCsv(Paths.get("src/main/resources/searchEval/" + fileNameCSV.replace(".csv", ".latency.csv")));
+            if (profiler != null) {
+                String fileNameProfile = fileNameCSV.replace(".csv", ".profile.txt");
+                profiler.writeReport(Paths.get("src/main/resources/searchEval/" + fileNameProfile));
+                System.out.println(profiler.summary() + "; queries más lentas en " + fileNameProfile);
+            }
 
 
         }catch(IOException e){
             e.printStackTrace();
         }
 
+        if(executor != null)
+            executor.shutdown();
         if(indexReader != null)
             indexReader.close();
     }
@@ -0,0 +1,138 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Índice de TREC-COVID repartido en shards INDEXPATH/shard0 ... shardN-1 según el hash del _id.
+ *
+ * Los shards se abren como un único MultiReader, así que las estadísticas de la colección (número de
+ * documentos, df, longitud media...) son las del corpus completo y los scores coinciden con los del índice
+ * sin particionar. El IndexSearcher busca cada shard en un hilo y mezcla los mejores resultados.
+ */
+public class ShardedIndex {
+
+    private static final String SHARD_PREFIX = "shard";
+
+    //Shard al que va un _id; el mismo en la indexación, las actualizaciones y los borrados
+    public static int shardFor(String id, int shards) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(id), 0), shards);
+    }
+
+    public static Path shardPath(Path indexPath, int shard) {
+        return indexPath.resolve(SHARD_PREFIX + shard);
+    }
+
+    //Directorios shard0, shard1... consecutivos que existen; vacío si el índice no está particionado
+    public static List<Path> shardPaths(Path indexPath) {
+        List<Path> shards = new ArrayList<>();
+        for (int shard = 0; Files.isDirectory(shardPath(indexPath, shard)); shard++) {
+            shards.add(shardPath(indexPath, shard));
+        }
+        return shards;
+    }
+
+    //Abre el índice, particionado o no, como un único IndexReader
+    public static IndexReader open(Path indexPath) throws IOException {
+        List<Path> shards = shardPaths(indexPath);
+        if (shards.isEmpty()) {
+            return DirectoryReader.open(FSDirectory.open(indexPath));
+        }
+        IndexReader[] readers = new IndexReader[shards.size()];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.open(FSDirectory.open(shards.get(i)));
+            }
+        } catch (IOException e) {
+            for (IndexReader reader : readers) {
+                if (reader != null) reader.close();
+            }
+            throw e;
+        }
+        //closeSubReaders: al cerrar el MultiReader se cierran los de cada shard
+        return new MultiReader(readers, true);
+    }
+
+    public static int numShards(IndexReader reader) {
+        return reader instanceof MultiReader ? reader.getContext().children().size() : 1;
+    }
+
+    //Un hilo por shard; null si el índice no está particionado y se busca en el hilo que llama
+    public static ExecutorService newExecutor(IndexReader reader) {
+        return newExecutor(reader, 0);
+    }
+
+    //Con threads > 0 un pool compartido de ese tamaño para buscar a la vez los slices de cada query
+    public static ExecutorService newExecutor(IndexReader reader, int threads) {
+        int size = threads > 0 ? threads : numShards(reader);
+        if (size <= 1 && threads <= 0) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(size, runnable -> {
+            Thread thread = new Thread(runnable, threads > 0 ? "segment-search" : "shard-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static IndexSearcher newSearcher(IndexReader reader, ExecutorService executor) {
+        return newSearcher(reader, executor, 0, 0);
+    }
+
+    /*
+     * Con varios shards cada slice es un shard completo: los segmentos de un shard se buscan en el mismo hilo.
+     * maxDocsPerSlice y maxSegmentsPerSlice > 0 reparten además los segmentos de cada shard (o del índice sin
+     * particionar) en slices más pequeños, que se buscan en paralelo; con 0 se usa el reparto por defecto.
+     */
+    public static IndexSearcher newSearcher(IndexReader reader, ExecutorService executor, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+        if (executor == null) {
+            return new IndexSearcher(reader);
+        }
+        boolean tuned = maxDocsPerSlice > 0 && maxSegmentsPerSlice > 0;
+        boolean sharded = numShards(reader) > 1;
+        return new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                if (!sharded) {
+                    return tuned ? slices(leaves, maxDocsPerSlice, maxSegmentsPerSlice) : super.slices(leaves);
+                }
+                Map<IndexReaderContext, List<LeafReaderContext>> byShard = new IdentityHashMap<>();
+                List<List<LeafReaderContext>> groups = new ArrayList<>();
+                for (LeafReaderContext leaf : leaves) {
+                    byShard.computeIfAbsent(leaf.parent, parent -> {
+                        List<LeafReaderContext> group = new ArrayList<>();
+                        groups.add(group);
+                        return group;
+                    }).add(leaf);
+                }
+                List<LeafSlice> slices = new ArrayList<>();
+                for (List<LeafReaderContext> group : groups) {
+                    if (tuned) {
+                        slices.addAll(Arrays.asList(slices(group, maxDocsPerSlice, maxSegmentsPerSlice)));
+                    } else {
+                        slices.add(new LeafSlice(group));
+                    }
+                }
+                return slices.toArray(new LeafSlice[0]);
+            }
+        };
+    }
+}
@@ -0,0 +1,137 @@
+package es.udc.fic.ri;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Top-K de una búsqueda con un umbral de total hits configurable y el número de documentos puntuados.
+ *
+ * Hasta el umbral se cuentan todos los hits; a partir de ahí Lucene puede saltarse los documentos que no
+ * pueden entrar en el top-K (block-max WAND) y el total pasa a ser una cota inferior. El top-K es el mismo con
+ * cualquier umbral; lo que cambia es cuántos documentos se puntúan y la latencia.
+ */
+public final class TopHits {
+
+    //El mismo que usa IndexSearcher.search(query, n)
+    public static final int DEFAULT_TOTAL_HITS_THRESHOLD = 1000;
+    //Contar siempre todos los hits: sin early termination
+    public static final int EXACT = Integer.MAX_VALUE;
+
+    private final ScoreDoc[] scoreDocs;
+    private final TotalHits totalHits;
+    private final long scoredDocs;
+
+    public TopHits(ScoreDoc[] scoreDocs, TotalHits totalHits, long scoredDocs) {
+        this.scoreDocs = scoreDocs;
+        this.totalHits = totalHits;
+        this.scoredDocs = scoredDocs;
+    }
+
+    //Top-K leído de la caché: no se ha buscado, así que no hay total ni documentos puntuados
+    public static TopHits cached(ScoreDoc[] scoreDocs) {
+        return new TopHits(scoreDocs, null, -1);
+    }
+
+    public boolean fromCache() {
+        return totalHits == null;
+    }
+
+    public ScoreDoc[] scoreDocs() {
+        return scoreDocs;
+    }
+
+    //null si viene de la caché
+    public TotalHits totalHits() {
+        return totalHits;
+    }
+
+    //Documentos que llegaron a puntuarse y pasaron al collector (-1 si viene de la caché)
+    public long scoredDocs() {
+        return scoredDocs;
+    }
+
+    //"exact" o un número de hits
+    public static int parseThreshold(String threshold) {
+        if (threshold.equals("exact")) {
+            return EXACT;
+        }
+        int n = Integer.parseInt(threshold);
+        if (n < 0)
+            throw new IllegalArgumentException("El umbral de total hits debe ser un número >= 0 o exact");
+        return n;
+    }
+
+    public static String thresholdLabel(int threshold) {
+        return threshold == EXACT ? "exact" : String.valueOf(threshold);
+    }
+
+    public static TopHits search(IndexSearcher searcher, Query query, int k, int totalHitsThreshold) throws IOException {
+        //Como IndexSearcher.search, K nunca mayor que el número de documentos
+        int numHits = Math.max(1, Math.min(k, searcher.getIndexReader().maxDoc()));
+        CollectorManager<TopScoreDocCollector, TopDocs> topDocsManager = TopScoreDocCollector.createSharedManager(numHits, null, totalHitsThreshold);
+        LongAdder scored = new LongAdder();
+
+        TopDocs topDocs = searcher.search(query, new CollectorManager<CountingCollector, TopDocs>() {
+            @Override
+            public CountingCollector newCollector() throws IOException {
+                return new CountingCollector(topDocsManager.newCollector(), scored);
+            }
+
+            @Override
+            public TopDocs reduce(Collection<CountingCollector> collectors) throws IOException {
+                List<TopScoreDocCollector> topCollectors = new ArrayList<>();
+                for (CountingCollector collector : collectors) {
+                    topCollectors.add(collector.topCollector);
+                }
+                return topDocsManager.reduce(topCollectors);
+            }
+        });
+        return new TopHits(topDocs.scoreDocs, topDocs.totalHits, scored.sum());
+    }
+
+    //Cuenta los documentos que recibe el collector del top-K
+    private static final class CountingCollector extends FilterCollector {
+        private final TopScoreDocCollector topCollector;
+        private final LongAdder scored;
+
+        private CountingCollector(TopScoreDocCollector topCollector, LongAdder scored) {
+            super(topCollector);
+            this.topCollector = topCollector;
+            this.scored = scored;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            return new FilterLeafCollector(super.getLeafCollector(context)) {
+                private long count;
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    count++;
+                    in.collect(doc);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    scored.add(count);
+                    in.finish();
+                }
+            };
+        }
+    }
+}
@@ -1,17 +1,8 @@
 package es.udc.fic.ri;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.queryparser.classic.QueryParser;
 
 
 import org.apache.lucene.search.similarities.BM25Similarity;
@@ -22,11 +13,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 public class TrainingTestTrecCovid {
 
+    //Latencia de todas las búsquedas del entrenamiento y el test
+    private static final QueryLatencies latencies = new QueryLatencies();
+    //Caché en disco de los top-K con -cache (null si no se usa)
+    private static ResultCache cache;
+
     /*
     @JsonIgnoreProperties(ignoreUnknown = true)
 
@@ -63,6 +59,21 @@ public class TrainingTestTrecCovid {
         }
     }
 
+    private static void validateIntraQuery(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("El número de threads por query debe ser mayor que 0");
+    }
+
+    private static void validateSlices(int maxDocs, int maxSegments){
+        if(maxDocs <= 0 || maxSegments <= 0)
+            throw new IllegalArgumentException("Los slices deben tener al menos un documento y un segmento");
+    }
+
+    private static void validateCacheSize(int megabytes){
+        if(megabytes <= 0)
+            throw new IllegalArgumentException("El tamaño de la caché (MB) debe ser mayor que 0");
+    }
+
     private static int [] validateRange(String range){
         String[] partes = range.split("-");
         int[] numeros = new int[2];
@@ -80,175 +91,27 @@ public class TrainingTestTrecCovid {
         return numeros;
     }
 
-    private static Map<String, Map<String, Integer>> readRelevanceFile() throws IOException {
-        InputStream judgmentsInputStream = IndexTrecCovid.class.getResourceAsStream("/trec-covid/qrels/test.tsv");
-        Map<String, Map<String, Integer>> judgments = new HashMap<>();
-        try (BufferedReader buffer = new BufferedReader(new InputStreamReader(judgmentsInputStream))) {
-            String line = buffer.readLine();  //Para saltarse la primera linea
-            while ((line = buffer.readLine()) != null) {
-                String[] parts = line.split("\t"); // Dividir la línea utilizando el carácter de tabulación como delimitador
-                String queryId = parts[0]; // El queryID está en la primera columna
-                String docId = parts[1]; // El docID está en la segunda columna
-                int relevance = Integer.parseInt(parts[2]); // Suponiendo que la relevancia está en la tercera columna
-                // Verificar si ya existe una entrada para este queryID, si no, crear una nueva
-                if (!judgments.containsKey(queryId)) {
-                    judgments.put(queryId, new HashMap<>());
-                }
-                judgments.get(queryId).put(docId, relevance); // Almacenar la relevancia para el documento y el query correspondientes
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return judgments;
-    }
-
-    private static boolean isRelevant(String queryId, String docId, Map<String, Map<String, Integer>> relevanceMap) {
-        return relevanceMap.get(queryId).getOrDefault(docId,0) != 0;
-    }
-
-    private static Query parseQueryForId(int id, List<JsonNode> queryList) throws ParseException {
-
-        String queryString;
-        String queryId;
-
-        for(JsonNode queryNode : queryList){
-            queryString = queryNode.get("metadata").get("query").asText();
-            queryString = queryString.toLowerCase(); //Para asegurar problemas con requerimientos booleanos
-            queryId = queryNode.get("_id").asText();
-
-            if(id == Integer.parseInt(queryId)){
-                return new QueryParser("text", new StandardAnalyzer()).parse(queryString);
-            }
-        }
-
-        return null;
-
-    }
-
-    private static List<JsonNode> readQueriesFile() throws IOException {
-        var queriesInputStream = IndexTrecCovid.class.getResourceAsStream("/trec-covid/queries.jsonl");
-        ObjectReader reader = JsonMapper.builder().findAndAddModules().build()
-                .readerFor(JsonNode.class);
-        List<JsonNode> queriesList = null;
-        try{
-            queriesList = reader.<JsonNode>readValues(queriesInputStream).readAll();
-        }catch(IOException e){
-            e.printStackTrace();
-        }
-        if(queriesInputStream != null)
-            queriesInputStream.close();
-
-        return queriesList;
-    }
-
-    private static double getPrecision(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-        int relevantRetrieved = 0;
-
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
-
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-            }
-        }
-
-        return (double) relevantRetrieved / Math.min(cut, hits.length);
-
-    }
-
-    private static double getAP(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-        int relevantRetrieved = 0;
-        double precisionSum = 0;
-
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
-
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-                precisionSum += (double) relevantRetrieved / (i + 1);
-            }
-        }
-
-        if (relevantRetrieved > 0) {
-            return precisionSum / relevantRetrieved;
-        } else {
-            return 0.0;
-        }
-    }
-
-
-    private static double getRecall(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-
-        int relevantRetrieved = 0;
-        int totalRelevant = 0;
-
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
-
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                relevantRetrieved++;
-            }
-        }
-
-        Map<String, Integer> queryRelevanceMap = relevanceMap.get(String.valueOf(queryId));
-
-        if (queryRelevanceMap != null) {
-            for(Integer m : queryRelevanceMap.values()){
-                if(m != 0){
-                    totalRelevant++;
-                }
-
-            }
-        }
-
-        if (totalRelevant != 0) {
-            return (double) relevantRetrieved / totalRelevant;
-        } else {
-            return 0.0;
-        }
-
-    }
-
-
-    private static double getRR(ScoreDoc[] hits, int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int queryId) throws IOException {
-
-        for (int i = 0; i < Math.min(cut, hits.length); i++) {
-            Document doc = indexSearcher.storedFields().document(hits[i].doc);
-            String docId = doc.get("_id");
-
-            if (isRelevant(String.valueOf(queryId), docId, relevanceMap)) {
-                return 1.0 / (i + 1);
-            }
-        }
-
-        return 0.0;
-    }
-
-
-    private static double getMeanMetricValue(int cut, Map<String, Map<String, Integer>> relevanceMap, IndexSearcher indexSearcher, int minQueryId, int maxQueryId, String metrica, Map<String, String> linesCSV, List<JsonNode> queriesList) throws IOException, ParseException {
+    private static double getMeanMetricValue(int cut, Judgments judgments, IndexSearcher indexSearcher, int minQueryId, int maxQueryId, String metrica, Map<String, String> linesCSV, TrecCovidTopics topics, TrecRunWriter runWriter) throws IOException {
         double sum = 0;
         int countQueries = 0;
         double metricValue;
-
+        QueryEvaluator evaluator = new QueryEvaluator(indexSearcher, judgments);
 
         // Itera sobre el rango de IDs de consulta especificado
         for (int queryId = minQueryId; queryId <= maxQueryId; queryId++) {
-            Query query = parseQueryForId(queryId,queriesList); // Obtiene la consulta correspondiente al ID
-            TopDocs topDocs = indexSearcher.search(query, cut); // Realiza la búsqueda de la consulta
-            ScoreDoc[] hits = topDocs.scoreDocs; // Obtiene los documentos recuperados
-
-            if(metrica.equals("P")){
-                metricValue = getPrecision(hits, cut, relevanceMap, indexSearcher, queryId);
-            }else if(metrica.equals("R")){
-                metricValue = getRecall(hits, cut, relevanceMap, indexSearcher, queryId);
-            }else if(metrica.equals("MRR")){
-                metricValue = getRR(hits, cut, relevanceMap, indexSearcher, queryId);
-            }else{ //MAP
-                metricValue = getAP(hits, cut, relevanceMap, indexSearcher, queryId);
+            Query query = topics.getParsedQuery(queryId); // Consulta ya parseada para ese ID
+            long start = System.nanoTime();
+            TopHits topHits = ResultCache.search(cache, indexSearcher, queryId, query, cut, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD); // Realiza la búsqueda de la consulta (o la lee de la caché)
+            //Las queries servidas por la caché no cuentan para la latencia
+            if (!topHits.fromCache()) {
+                latencies.record(queryId, System.nanoTime() - start);
+            }
+            ScoreDoc[] hits = topHits.scoreDocs();
+
+            QueryEvaluator.Result result = evaluator.evaluate(queryId, hits, cut);
+            metricValue = result.get(metrica);
+            if (runWriter != null) {
+                runWriter.write(queryId, result);
             }
 
 
@@ -355,7 +218,7 @@ public class TrainingTestTrecCovid {
     }
 
 
-    private static void testEval(float similarityValue, int min2, int max2, String metrica, int cut, Map<String, Map<String, Integer>> relevanceMap , IndexSearcher indexSearcher, String fileName, boolean isJM, List<JsonNode> queriesList) throws IOException {
+    private static void testEval(float similarityValue, int min2, int max2, String metrica, int cut, Judgments judgments , IndexSearcher indexSearcher, String fileName, boolean isJM, TrecCovidTopics topics, String runFile) throws IOException {
 
 
         String metricaFile = getMetricaFile(metrica);
@@ -373,12 +236,14 @@ public class TrainingTestTrecCovid {
 
         linesCSV.put(promedioFile, promedioFile);
 
-        try{
+        //La run de TREC es la del test, con el mejor valor del entrenamiento
+        String runTag = "TREC-COVID." + (isJM ? "jm.lambda." : "bm25.k1.") + similarityValue;
+        try(TrecRunWriter runWriter = runFile != null ? new TrecRunWriter(Paths.get(runFile), runTag) : null){
             BufferedWriter writer = new BufferedWriter(new FileWriter( "src/main/resources/trainingTest/" + fileName));
 
             writer.write(similarityValue + "," + metricaFile + "\r\n");
 
-            meanMetricValue = getMeanMetricValue(cut, relevanceMap, indexSearcher, min2, max2, metrica, linesCSV,queriesList );
+            meanMetricValue = getMeanMetricValue(cut, judgments, indexSearcher, min2, max2, metrica, linesCSV,topics, runWriter);
 
             String promediosLine = linesCSV.get(promedioFile) +  "," + meanMetricValue;
             linesCSV.put(promedioFile, promediosLine);
@@ -389,15 +254,13 @@ public class TrainingTestTrecCovid {
             printResultsTraining(fileName, "TEST");
         }catch (IOException e){
             e.printStackTrace();
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
         }
 
 
     }
 
 
-    private static void evalJM(IndexSearcher indexSearcher, String metrica, int cut, int min1, int max1, int min2, int max2, Map<String, Map<String, Integer>> relevanceMap, List<JsonNode> queriesList) throws IOException {
+    private static void evalJM(IndexSearcher indexSearcher, String metrica, int cut, int min1, int max1, int min2, int max2, Judgments judgments, TrecCovidTopics topics, String runFile) throws IOException {
 
 
         double meanMetricValue;
@@ -428,7 +291,7 @@ public class TrainingTestTrecCovid {
                     indexSearcher.setSimilarity(lmJelinekMercerSimilarity);
                 }
 
-                meanMetricValue = getMeanMetricValue(cut, relevanceMap,indexSearcher, min1, max1, metrica, linesCSV, queriesList);
+                meanMetricValue = getMeanMetricValue(cut, judgments,indexSearcher, min1, max1, metrica, linesCSV, topics, null);
 
                 if(meanMetricValue > maxMetricValue){
                     maxMetricValue = meanMetricValue;
@@ -443,19 +306,17 @@ public class TrainingTestTrecCovid {
             writeCSV(writer, linesCSV, min1, max1, promedioFile);
             writer.close();
             printResultsTraining(fileName, "TRAINING");
-            testEval(bestLambda, min2, max2, metrica, cut , relevanceMap, indexSearcher, testFileName, true, queriesList);
+            testEval(bestLambda, min2, max2, metrica, cut , judgments, indexSearcher, testFileName, true, topics, runFile);
 
         }catch (IOException e){
             e.printStackTrace();
-        } catch (ParseException e) {
-            throw new RuntimeException(e);
         }
     }
 
 
 
 
-    private static void evalBM25(IndexSearcher indexSearcher, String metrica, int cut, int min1, int max1, int min2, int max2, Map<String, Map<String, Integer>> relevanceMap, List<JsonNode> queriesList) throws IOException{
+    private static void evalBM25(IndexSearcher indexSearcher, String metrica, int cut, int min1, int max1, int min2, int max2, Judgments judgments, TrecCovidTopics topics, String runFile) throws IOException{
 
         double meanMetricValue;
         double maxMetricValue = 0;
@@ -486,7 +347,7 @@ public class TrainingTestTrecCovid {
                 }
 
 
-                meanMetricValue = getMeanMetricValue(cut, relevanceMap,indexSearcher, min1, max1, metrica, linesCSV, queriesList);
+                meanMetricValue = getMeanMetricValue(cut, judgments,indexSearcher, min1, max1, metrica, linesCSV, topics, null);
 
                 if(meanMetricValue > maxMetricValue){
                     maxMetricValue = meanMetricValue;
@@ -501,19 +362,22 @@ public class TrainingTestTrecCovid {
             writeCSV(writer, linesCSV, min1, max1, promedioFile);
             writer.close();
             printResultsTraining(fileName, "TRAINING");
-            testEval(bestK1, min2, max2, metrica, cut , relevanceMap, indexSearcher, testFileName, false, queriesList);
+            testEval(bestK1, min2, max2, metrica, cut , judgments, indexSearcher, testFileName, false, topics, runFile);
 
-        }catch (IOException | ParseException e){
+        }catch (IOException e){
             e.printStackTrace();
         }
     }
 
 
-    public static void main( String[] args ) throws IOException {
+    public static void main( String[] args ) throws IOException, ParseException {
 
-        String usage= "-index INDEX_PATH -metrica [P | R | MRR | MAP] -cut N ( -evaljm INT1-INT2 INT3-INT4 | -evalbm25 INT1-INT2 INT3-INT4 )";
-        String eval = null, rangeStr1 = null, rangeStr2 = null, indexPath = null, metrica = null;
+        String usage= "-index INDEX_PATH -metrica [P | R | MRR | MAP] -cut N ( -evaljm INT1-INT2 INT3-INT4 | -evalbm25 INT1-INT2 INT3-INT4 ) [-intraquery N] [-slices MAXDOCS MAXSEGMENTS] [-runfile FILE] [-cache DIR [-cachesize MB]] [-topics COMPILED]";
+        String eval = null, rangeStr1 = null, rangeStr2 = null, indexPath = null, metrica = null, runFile = null, cacheDir = null;
+        int cacheSizeMB = 256;
+        Path topicsPath = TrecCovidTopics.COMPILED_PATH;
         int cut = -1;
+        int intraQuery = 0, sliceDocs = 0, sliceSegments = 0;
         int [] range1;
         int [] range2;
         int min1, max1, min2, max2;
@@ -547,6 +411,29 @@ public class TrainingTestTrecCovid {
                     rangeStr1 = args[++i];
                     rangeStr2 = args[++i];
                     break;
+                case "-intraquery":
+                    intraQuery = Integer.parseInt(args[++i]);
+                    validateIntraQuery(intraQuery);
+                    break;
+                case "-cache":
+                    cacheDir = args[++i];
+                    break;
+                case "-cachesize":
+                    cacheSizeMB = Integer.parseInt(args[++i]);
+                    validateCacheSize(cacheSizeMB);
+                    break;
+                case "-runfile":
+                    runFile = args[++i];
+                    break;
+                case "-topics":
+                    //Binario compilado con CompileTrecCovid -out
+                    topicsPath = TrecCovidTopics.compiledPath(args[++i]);
+                    break;
+                case "-slices":
+                    sliceDocs = Integer.parseInt(args[++i]);
+                    sliceSegments = Integer.parseInt(args[++i]);
+                    validateSlices(sliceDocs, sliceSegments);
+                    break;
                 default:
                     throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
             }
@@ -564,26 +451,41 @@ public class TrainingTestTrecCovid {
         min2 = range2[0];
         max2 = range2[1];
 
-        List<JsonNode> queriesList = readQueriesFile();
+        //Binario compilado con CompileTrecCovid si existe; si no, queries.jsonl y qrels/test.tsv.
+        //Las queries se parsean una vez y se reutilizan en todos los valores de lambda/k1 y en el test
+        TrecCovidTopics topics = TrecCovidTopics.load(topicsPath).parseQueries();
         IndexReader indexReader = null;
-        Map<String,Map<String , Integer>> relevanceMap = readRelevanceFile();
 
-        try(Directory directory = FSDirectory.open(Paths.get(indexPath))){
-            indexReader = DirectoryReader.open(directory);
-            IndexSearcher indexSearcher = new IndexSearcher(indexReader);
+        ExecutorService executor = null;
+
+        try{
+            //Índice único o repartido en shards: se busca en todos a la vez con las estadísticas del corpus completo.
+            //Con -intraquery los slices de cada query se buscan en paralelo en un pool compartido
+            indexReader = ShardedIndex.open(Paths.get(indexPath));
+            executor = ShardedIndex.newExecutor(indexReader, intraQuery);
+            IndexSearcher indexSearcher = ShardedIndex.newSearcher(indexReader, executor, sliceDocs, sliceSegments);
+            //Los _id juzgados se traducen a docIDs una sola vez para todo el entrenamiento y el test
+            Judgments judgments = Judgments.build(indexReader, topics);
+            if(cacheDir != null)
+                cache = ResultCache.open(Paths.get(cacheDir), cacheSizeMB * 1024L * 1024L, Paths.get(indexPath), indexReader);
 
             if(eval.equals("evaljm")){
                 System.out.println("Evaluando con Jelinek-Mercer\n\n");
-                evalJM(indexSearcher, metrica, cut, min1, max1, min2, max2, relevanceMap, queriesList);
+                evalJM(indexSearcher, metrica, cut, min1, max1, min2, max2, judgments, topics, runFile);
             }else{
                 System.out.println("Evaluando con BM25\n\n");
-                evalBM25(indexSearcher, metrica, cut, min1, max1, min2, max2, relevanceMap, queriesList);
+                evalBM25(indexSearcher, metrica, cut, min1, max1, min2, max2, judgments, topics, runFile);
             }
+            System.out.println(latencies.summary());
+            if(cache != null)
+                System.out.println(cache.summary());
 
         }catch (IOException e){
             e.printStackTrace();
         }
 
+        if(executor != null)
+            executor.shutdown();
         if(indexReader != null)
             indexReader.close();
 
@@ -0,0 +1,446 @@
+package es.udc.fic.ri;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Queries y juicios de relevancia de TREC-COVID.
+ *
+ * Se leen del fichero binario que genera CompileTrecCovid, mapeándolo en memoria, o de queries.jsonl y
+ * qrels/test.tsv de los recursos si no se ha compilado. Si los ficheros de los que se compiló han cambiado,
+ * se leen esos ficheros de texto. Formato del binario (big endian): MAGIC, VERSION, ficheros de origen
+ * (queries y qrels, cada uno con URI, tamaño y fecha de modificación); nº de queries y por cada una (id, bytes UTF-8 del texto); nº de _id juzgados,
+ * posición de inicio de cada _id y del final, y los bytes UTF-8 de todos seguidos; nº de queries juzgadas, en orden de id, y por cada una
+ * (id, nº de juicios, pares (índice del _id, etiqueta)).
+ *
+ * Los juicios se sirven desde el propio fichero mapeado: Judgments los lee como enteros y busca los _id como bytes,
+ * sin construir Strings ni mapas. El mapa de getRelevance() solo se construye si alguien lo pide.
+ */
+public class TrecCovidTopics {
+
+    public static final Path COMPILED_PATH = Paths.get("src/main/resources/trec-covid/compiled.bin");
+
+    private static final int MAGIC = 0x54434F56; //"TCOV"
+    private static final int VERSION = 3;
+
+    private static final String QUERIES_RESOURCE = "/trec-covid/queries.jsonl";
+    private static final String QRELS_RESOURCE = "/trec-covid/qrels/test.tsv";
+
+    //Texto original de cada query por id, en orden de id
+    private final Map<Integer, String> queries;
+    //_id juzgados: bytes UTF-8 de todos seguidos y dónde empieza cada uno (nº de _id + 1 posiciones)
+    private final ByteBuffer judgedIdBytes;
+    private final IntBuffer judgedIdOffsets;
+    //Ids de las queries juzgadas, en orden, y sus juicios como pares (índice del _id, etiqueta)
+    private final int[] judgedQueries;
+    private final IntBuffer[] judgments;
+    //queryId -> (_id -> relevancia), como en el fichero de qrels; se construye al pedirlo
+    private Map<String, Map<String, Integer>> relevance;
+    //Query parseada por id, rellenada una vez por parseQueries()
+    private Query[] parsedQueries = new Query[0];
+
+    public TrecCovidTopics(Map<Integer, String> queries, Map<String, Map<String, Integer>> relevance) {
+        this.queries = queries;
+        this.relevance = relevance;
+
+        judgedQueries = relevance.keySet().stream().mapToInt(Integer::parseInt).sorted().toArray();
+        judgments = new IntBuffer[judgedQueries.length];
+        //Cada _id juzgado se guarda una sola vez y los juicios lo referencian por índice
+        Map<String, Integer> idIndex = new LinkedHashMap<>();
+        ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+        List<Integer> idOffsets = new ArrayList<>();
+        for (int i = 0; i < judgedQueries.length; i++) {
+            Map<String, Integer> queryJudgments = relevance.get(String.valueOf(judgedQueries[i]));
+            int[] pairs = new int[queryJudgments.size() * 2];
+            int n = 0;
+            for (Map.Entry<String, Integer> judgment : queryJudgments.entrySet()) {
+                Integer index = idIndex.get(judgment.getKey());
+                if (index == null) {
+                    index = idIndex.size();
+                    idIndex.put(judgment.getKey(), index);
+                    idOffsets.add(idBytes.size());
+                    idBytes.writeBytes(judgment.getKey().getBytes(StandardCharsets.UTF_8));
+                }
+                pairs[n++] = index;
+                pairs[n++] = judgment.getValue();
+            }
+            judgments[i] = IntBuffer.wrap(pairs);
+        }
+        idOffsets.add(idBytes.size());
+        judgedIdBytes = ByteBuffer.wrap(idBytes.toByteArray());
+        judgedIdOffsets = IntBuffer.wrap(idOffsets.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private TrecCovidTopics(Map<Integer, String> queries, ByteBuffer judgedIdBytes, IntBuffer judgedIdOffsets,
+                            int[] judgedQueries, IntBuffer[] judgments) {
+        this.queries = queries;
+        this.judgedIdBytes = judgedIdBytes;
+        this.judgedIdOffsets = judgedIdOffsets;
+        this.judgedQueries = judgedQueries;
+        this.judgments = judgments;
+    }
+
+    public Map<Integer, String> getQueries() {
+        return queries;
+    }
+
+    public String getQuery(int id) {
+        return queries.get(id);
+    }
+
+    //El parser de las queries de evaluación; no es thread-safe
+    public static QueryParser newQueryParser() {
+        return new QueryParser("text", new StandardAnalyzer());
+    }
+
+    //Parsea todas las queries una vez, con un único QueryParser; las Query son inmutables y sirven para cualquier similitud
+    public TrecCovidTopics parseQueries() throws ParseException {
+        QueryParser parser = newQueryParser();
+        int maxId = queries.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+        Query[] parsed = new Query[maxId + 1];
+        for (Map.Entry<Integer, String> query : queries.entrySet()) {
+            //En minúsculas para asegurar problemas con requerimientos booleanos
+            parsed[query.getKey()] = parser.parse(query.getValue().toLowerCase());
+        }
+        parsedQueries = parsed;
+        return this;
+    }
+
+    //null si no hay query con ese id
+    public Query getParsedQuery(int id) {
+        return id >= 0 && id < parsedQueries.length ? parsedQueries[id] : null;
+    }
+
+    //Para quien necesita los _id como Strings (TrecEval); la evaluación usa Judgments, que lee los juicios directamente
+    public synchronized Map<String, Map<String, Integer>> getRelevance() {
+        if (relevance == null) {
+            String[] ids = new String[getNumJudgedIds()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = getJudgedId(i).utf8ToString();
+            }
+            Map<String, Map<String, Integer>> map = new HashMap<>(judgedQueries.length * 2);
+            for (int queryId : judgedQueries) {
+                IntBuffer pairs = getJudgments(queryId);
+                Map<String, Integer> queryJudgments = new HashMap<>(pairs.remaining());
+                while (pairs.hasRemaining()) {
+                    queryJudgments.put(ids[pairs.get()], pairs.get());
+                }
+                map.put(String.valueOf(queryId), queryJudgments);
+            }
+            relevance = map;
+        }
+        return relevance;
+    }
+
+    public int getNumJudgedIds() {
+        return judgedIdOffsets.limit() - 1;
+    }
+
+    //Bytes UTF-8 del _id juzgado con ese índice, como término del campo _id
+    public BytesRef getJudgedId(int index) {
+        int start = judgedIdOffsets.get(index);
+        byte[] bytes = new byte[judgedIdOffsets.get(index + 1) - start];
+        judgedIdBytes.get(start, bytes);
+        return new BytesRef(bytes);
+    }
+
+    //Ids de las queries con juicios, en orden; no se debe modificar
+    public int[] getJudgedQueries() {
+        return judgedQueries;
+    }
+
+    //Pares (índice del _id, etiqueta) de la query, o null si no tiene juicios
+    public IntBuffer getJudgments(int queryId) {
+        int i = Arrays.binarySearch(judgedQueries, queryId);
+        return i < 0 ? null : judgments[i].duplicate();
+    }
+
+    public int getNumJudgments() {
+        return Arrays.stream(judgments).mapToInt(pairs -> pairs.limit() / 2).sum();
+    }
+
+    //Queries y juicios de los recursos, como ficheros de origen por defecto de CompileTrecCovid
+    public static URL queriesResource() {
+        return IndexTrecCovid.class.getResource(QUERIES_RESOURCE);
+    }
+
+    public static URL qrelsResource() {
+        return IndexTrecCovid.class.getResource(QRELS_RESOURCE);
+    }
+
+    //Ruta de un binario compilado indicada en los parámetros (-topics)
+    public static Path compiledPath(String file) {
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("El fichero compilado " + file + " no existe");
+        }
+        return path;
+    }
+
+    public static TrecCovidTopics load() throws IOException {
+        return load(COMPILED_PATH);
+    }
+
+    /*
+     * El binario compilado si existe y está al día. Si sus ficheros de origen han cambiado se leen esos ficheros
+     * de texto, no los de los recursos, para no cambiar de conjunto de queries sin avisar. Sin binario, los
+     * ficheros de texto de los recursos.
+     */
+    public static TrecCovidTopics load(Path compiled) throws IOException {
+        if (!Files.exists(compiled)) {
+            try (InputStream queries = IndexTrecCovid.class.getResourceAsStream(QUERIES_RESOURCE);
+                 InputStream qrels = IndexTrecCovid.class.getResourceAsStream(QRELS_RESOURCE)) {
+                return readText(queries, qrels);
+            }
+        }
+        List<Source> sources = readSources(compiled);
+        if (sources == null) {
+            throw new IllegalArgumentException("El fichero " + compiled + " es de otra versión: hay que volver a ejecutar CompileTrecCovid");
+        }
+        if (sources.stream().allMatch(Source::isCurrent)) {
+            return loadCompiled(compiled);
+        }
+        System.out.println("Las queries o los juicios han cambiado desde que se compiló " + compiled + "; se leen "
+                + sources.get(0).uri + " y " + sources.get(1).uri);
+        try (InputStream queries = sources.get(0).open(compiled);
+             InputStream qrels = sources.get(1).open(compiled)) {
+            return readText(queries, qrels);
+        }
+    }
+
+    //Tamaño y fecha de modificación de un fichero de origen, en disco o dentro de un jar
+    private static long[] fingerprint(URL source) throws IOException {
+        if (source.getProtocol().equals("file")) {
+            Path file;
+            try {
+                file = Paths.get(source.toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException("URI no válida: " + source, e);
+            }
+            return new long[]{Files.size(file), Files.getLastModifiedTime(file).toMillis()};
+        }
+        //Dentro de un jar: se abre la entrada para leer sus datos y se cierra enseguida
+        URLConnection connection = source.openConnection();
+        connection.setUseCaches(false);
+        InputStream in = connection.getInputStream();
+        try {
+            return new long[]{connection.getContentLengthLong(), connection.getLastModified()};
+        } finally {
+            in.close();
+        }
+    }
+
+    //Fichero de origen de un binario compilado, con el tamaño y la fecha de modificación que tenía al compilarlo
+    private static final class Source {
+        private final String uri;
+        private final long size, modified;
+
+        private Source(String uri, long size, long modified) {
+            this.uri = uri;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        private boolean isCurrent() {
+            try {
+                long[] current = fingerprint(URI.create(uri).toURL());
+                return current[0] == size && current[1] == modified;
+            } catch (IOException e) {
+                return false; //el fichero de origen ya no existe
+            }
+        }
+
+        private InputStream open(Path compiled) {
+            try {
+                return URI.create(uri).toURL().openStream();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("No se puede leer " + uri + ", del que se compiló " + compiled
+                        + ": hay que volver a ejecutar CompileTrecCovid", e);
+            }
+        }
+    }
+
+    //Ficheros de origen (queries y qrels) de la cabecera; null si el binario no es de esta versión
+    private static List<Source> readSources(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int numSources = in.readInt();
+            List<Source> sources = new ArrayList<>(numSources);
+            for (int i = 0; i < numSources; i++) {
+                sources.add(new Source(readString(in), in.readLong(), in.readLong()));
+            }
+            return sources.size() == 2 ? sources : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    public static TrecCovidTopics readText(InputStream queriesInputStream, InputStream judgmentsInputStream) throws IOException {
+        return new TrecCovidTopics(readQueries(queriesInputStream), readRelevance(judgmentsInputStream));
+    }
+
+    private static Map<Integer, String> readQueries(InputStream queriesInputStream) throws IOException {
+        Map<Integer, String> queries = new TreeMap<>();
+        if (queriesInputStream == null) {
+            return queries;
+        }
+        ObjectReader reader = JsonMapper.builder().findAndAddModules().build()
+                .readerFor(JsonNode.class);
+        for (JsonNode queryNode : reader.<JsonNode>readValues(queriesInputStream).readAll()) {
+            queries.put(Integer.parseInt(queryNode.get("_id").asText()), queryNode.get("metadata").get("query").asText());
+        }
+        return queries;
+    }
+
+    private static Map<String, Map<String, Integer>> readRelevance(InputStream judgmentsInputStream) throws IOException {
+        Map<String, Map<String, Integer>> judgments = new HashMap<>();
+        if (judgmentsInputStream == null) {
+            return judgments;
+        }
+        try (BufferedReader buffer = new BufferedReader(new InputStreamReader(judgmentsInputStream, StandardCharsets.UTF_8))) {
+            String line = buffer.readLine();  //Para saltarse la primera linea
+            while ((line = buffer.readLine()) != null) {
+                String[] parts = line.split("\t"); // Dividir la línea utilizando el carácter de tabulación como delimitador
+                String queryId = parts[0]; // El queryID está en la primera columna
+                String docId = parts[1]; // El docID está en la segunda columna
+                int relevance = Integer.parseInt(parts[2]); // Suponiendo que la relevancia está en la tercera columna
+                judgments.computeIfAbsent(queryId, k -> new HashMap<>()).put(docId, relevance);
+            }
+        }
+        return judgments;
+    }
+
+    //Ficheros de los que se han leído las queries y los juicios, para detectar cuándo cambian
+    public void writeCompiled(Path file, URL queriesSource, URL qrelsSource) throws IOException {
+        URL[] sources = {queriesSource, qrelsSource};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sources.length);
+            for (URL source : sources) {
+                long[] fingerprint = fingerprint(source);
+                writeString(out, source.toExternalForm());
+                out.writeLong(fingerprint[0]);
+                out.writeLong(fingerprint[1]);
+            }
+            out.writeInt(queries.size());
+            for (Map.Entry<Integer, String> query : queries.entrySet()) {
+                out.writeInt(query.getKey());
+                writeString(out, query.getValue());
+            }
+            out.writeInt(getNumJudgedIds());
+            for (int i = 0; i < judgedIdOffsets.limit(); i++) {
+                out.writeInt(judgedIdOffsets.get(i));
+            }
+            byte[] idBytes = new byte[judgedIdBytes.limit()];
+            judgedIdBytes.get(0, idBytes);
+            out.write(idBytes);
+            out.writeInt(judgedQueries.length);
+            for (int i = 0; i < judgedQueries.length; i++) {
+                out.writeInt(judgedQueries[i]);
+                out.writeInt(judgments[i].limit() / 2);
+                for (int j = 0; j < judgments[i].limit(); j++) {
+                    out.writeInt(judgments[i].get(j));
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static TrecCovidTopics loadCompiled(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IllegalArgumentException("El fichero " + file + " no es un fichero compilado por CompileTrecCovid");
+        }
+        int numSources = buffer.getInt();
+        for (int i = 0; i < numSources; i++) {
+            readString(buffer);
+            buffer.getLong();
+            buffer.getLong();
+        }
+
+        int numQueries = buffer.getInt();
+        Map<Integer, String> queries = new TreeMap<>();
+        for (int i = 0; i < numQueries; i++) {
+            int id = buffer.getInt();
+            queries.put(id, readString(buffer));
+        }
+
+        //Los juicios quedan como vistas del fichero mapeado
+        int numIds = buffer.getInt();
+        IntBuffer idOffsets = buffer.slice(buffer.position(), (numIds + 1) * Integer.BYTES).asIntBuffer();
+        buffer.position(buffer.position() + (numIds + 1) * Integer.BYTES);
+        ByteBuffer idBytes = buffer.slice(buffer.position(), idOffsets.get(numIds));
+        buffer.position(buffer.position() + idOffsets.get(numIds));
+
+        int numJudgedQueries = buffer.getInt();
+        int[] judgedQueries = new int[numJudgedQueries];
+        IntBuffer[] judgments = new IntBuffer[numJudgedQueries];
+        for (int i = 0; i < numJudgedQueries; i++) {
+            judgedQueries[i] = buffer.getInt();
+            int length = buffer.getInt() * 2 * Integer.BYTES;
+            judgments[i] = buffer.slice(buffer.position(), length).asIntBuffer();
+            buffer.position(buffer.position() + length);
+        }
+        return new TrecCovidTopics(queries, idBytes, idOffsets, judgedQueries, judgments);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
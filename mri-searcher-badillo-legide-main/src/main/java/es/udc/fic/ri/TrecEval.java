@@ -0,0 +1,417 @@
+package es.udc.fic.ri;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Evalúa ficheros de run de TREC con la misma semántica y formato de salida que trec_eval para num_ret, num_rel,
+ * num_rel_ret, map, recip_rank, P_k, recall_k, ndcg y ndcg_cut_k.
+ *
+ * Como trec_eval, ordena los documentos de cada query por score descendente y, a igualdad, por docno descendente
+ * (el rango de la run se ignora), solo evalúa las queries de la run que tienen juicios y un documento es relevante
+ * si su etiqueta es >= -level (1 por defecto). La run y los qrels se mapean en memoria y se parsean por rangos de
+ * líneas en paralelo; después cada query se evalúa en paralelo.
+ */
+public class TrecEval {
+
+    //Cortes por defecto de trec_eval para P, recall y ndcg_cut
+    private static final int[] DEFAULT_CUTOFFS = {5, 10, 15, 20, 30, 100, 200, 500, 1000};
+
+    //Tamaño máximo de cada rango mapeado (un MappedByteBuffer no puede pasar de 2 GB)
+    private static final long MAX_RANGE = 1L << 30;
+
+    private static final class RunEntry {
+        private final String docno;
+        private final double sim;
+
+        private RunEntry(String docno, double sim) {
+            this.docno = docno;
+            this.sim = sim;
+        }
+    }
+
+    //Score descendente y, a igualdad, docno descendente, como trec_eval
+    private static final Comparator<RunEntry> TREC_ORDER = (a, b) -> {
+        int bySim = Double.compare(b.sim, a.sim);
+        return bySim != 0 ? bySim : b.docno.compareTo(a.docno);
+    };
+
+    //Medidas de una query, o su agregado en "all"
+    private static final class Measures {
+        private long numRet, numRel, numRelRet;
+        private double map, recipRank, ndcg;
+        private final double[] p, recall, ndcgCut;
+
+        private Measures(int cutoffs) {
+            p = new double[cutoffs];
+            recall = new double[cutoffs];
+            ndcgCut = new double[cutoffs];
+        }
+    }
+
+    /*
+     * Recibe cada línea con el inicio y el fin de sus columnas; cada worker tiene el suyo y al final se juntan.
+     * Solo se crean Strings para las columnas que se usan.
+     */
+    private interface LineParser {
+        void line(byte[] line, int[] starts, int[] ends, int count);
+    }
+
+    private static String column(byte[] line, int[] starts, int[] ends, int i) {
+        return new String(line, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    private static void validateFile(String file){
+        if(!Files.isRegularFile(Paths.get(file))){
+            throw new IllegalArgumentException("El fichero " + file + " no existe");
+        }
+    }
+
+    private static void validateThreads(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("El número de threads debe ser mayor que 0");
+    }
+
+    private static int[] parseCutoffs(String cutoffs){
+        int[] values = Arrays.stream(cutoffs.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).sorted().distinct().toArray();
+        if (values.length == 0 || values[0] <= 0)
+            throw new IllegalArgumentException("Los cortes deben ser mayores que 0");
+        return values;
+    }
+
+    //Parsea el fichero por rangos de líneas mapeados en memoria, uno por tarea
+    private static <T extends LineParser> List<T> parseFile(Path file, ExecutorService executor, int threads, Supplier<T> parsers) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int ranges = (int) Math.max(threads, (channel.size() + MAX_RANGE - 1) / MAX_RANGE);
+            long[] bounds = FileRanges.splitAtNewlines(channel, ranges);
+            List<Future<T>> tasks = new ArrayList<>();
+            for (int k = 0; k < ranges; k++) {
+                long start = bounds[k];
+                long end = bounds[k + 1];
+                if (start == end) continue;
+                tasks.add(executor.submit(() -> {
+                    T parser = parsers.get();
+                    parseRange(FileRanges.map(channel, start, end), parser);
+                    return parser;
+                }));
+            }
+            List<T> parsed = new ArrayList<>();
+            for (Future<T> task : tasks) {
+                parsed.add(task.get());
+            }
+            return parsed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Lectura interrumpida de " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al leer " + file + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    //Divide cada línea en columnas separadas por espacios o tabuladores, sin pasar por String.split
+    private static void parseRange(MappedByteBuffer buffer, LineParser parser) {
+        byte[] line = new byte[256];
+        int[] starts = new int[6];
+        int[] ends = new int[6];
+        int limit = buffer.limit();
+        int position = 0;
+        while (position < limit) {
+            int length = 0;
+            while (position < limit) {
+                byte b = buffer.get(position++);
+                if (b == '\n') break;
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = b;
+            }
+            int count = 0;
+            int i = 0;
+            while (i < length && count < starts.length) {
+                while (i < length && isSpace(line[i])) i++;
+                int start = i;
+                while (i < length && !isSpace(line[i])) i++;
+                if (i > start) {
+                    starts[count] = start;
+                    ends[count++] = i;
+                }
+            }
+            if (count > 0) {
+                parser.line(line, starts, ends, count);
+            }
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static final class RunParser implements LineParser {
+        private final Map<String, List<RunEntry>> byQuery = new HashMap<>();
+        private String tag = "";
+        //Las líneas de una query suelen ir seguidas: se reutiliza su lista mientras no cambie el qid
+        private byte[] lastQid = new byte[0];
+        private List<RunEntry> lastEntries;
+
+        @Override
+        public void line(byte[] line, int[] starts, int[] ends, int count) {
+            if (count < 6) {
+                throw new IllegalArgumentException("Línea de run mal formada (qid Q0 docno rank score tag): "
+                        + new String(line, starts[0], ends[count - 1] - starts[0], StandardCharsets.UTF_8));
+            }
+            if (!Arrays.equals(line, starts[0], ends[0], lastQid, 0, lastQid.length)) {
+                lastQid = Arrays.copyOfRange(line, starts[0], ends[0]);
+                lastEntries = byQuery.computeIfAbsent(column(line, starts, ends, 0), q -> new ArrayList<>());
+            }
+            lastEntries.add(new RunEntry(column(line, starts, ends, 2), Double.parseDouble(column(line, starts, ends, 4))));
+            if (tag.isEmpty()) {
+                tag = column(line, starts, ends, 5);
+            }
+        }
+    }
+
+    //qrels de TREC (qid iter docno rel) o de BEIR (query-id corpus-id score, con cabecera)
+    private static final class QrelsParser implements LineParser {
+        private final Map<String, Map<String, Integer>> byQuery = new HashMap<>();
+
+        @Override
+        public void line(byte[] line, int[] starts, int[] ends, int count) {
+            if (count < 3) return;
+            int docno = count >= 4 ? 2 : 1;
+            int relevance;
+            try {
+                relevance = Integer.parseInt(column(line, starts, ends, docno + 1));
+            } catch (NumberFormatException e) {
+                return; //cabecera
+            }
+            byQuery.computeIfAbsent(column(line, starts, ends, 0), q -> new HashMap<>()).put(column(line, starts, ends, docno), relevance);
+        }
+    }
+
+    private static Measures evaluate(List<RunEntry> entries, Map<String, Integer> judgments, int[] cutoffs, int level) {
+        Measures m = new Measures(cutoffs.length);
+        RunEntry[] ranked = entries.toArray(new RunEntry[0]);
+        Arrays.sort(ranked, TREC_ORDER);
+
+        Set<String> seen = new HashSet<>();
+        for (RunEntry entry : ranked) {
+            if (!seen.add(entry.docno)) {
+                throw new IllegalArgumentException("Documento repetido en la run: " + entry.docno);
+            }
+        }
+
+        //Ranking ideal: ganancias de los documentos juzgados, de mayor a menor
+        List<Integer> idealGains = new ArrayList<>();
+        for (int rel : judgments.values()) {
+            if (rel >= level) m.numRel++;
+            if (rel > 0) idealGains.add(rel);
+        }
+        idealGains.sort(Comparator.reverseOrder());
+        double[] idealDcg = new double[idealGains.size() + 1];
+        for (int i = 0; i < idealGains.size(); i++) {
+            idealDcg[i + 1] = idealDcg[i] + idealGains.get(i) / log2(i + 2);
+        }
+
+        m.numRet = ranked.length;
+        double precisionSum = 0;
+        double dcg = 0;
+        int k = 0;
+        for (int i = 0; i < ranked.length; i++) {
+            int rel = judgments.getOrDefault(ranked[i].docno, 0);
+            if (rel >= level) {
+                m.numRelRet++;
+                precisionSum += (double) m.numRelRet / (i + 1);
+                if (m.recipRank == 0.0) {
+                    m.recipRank = 1.0 / (i + 1);
+                }
+            }
+            if (rel > 0) {
+                dcg += rel / log2(i + 2);
+            }
+            for (; k < cutoffs.length && cutoffs[k] == i + 1; k++) {
+                cutoff(m, k, cutoffs[k], dcg, idealDcg);
+            }
+        }
+        //Cortes por encima de los documentos recuperados
+        for (; k < cutoffs.length; k++) {
+            cutoff(m, k, cutoffs[k], dcg, idealDcg);
+        }
+
+        m.map = m.numRel > 0 ? precisionSum / m.numRel : 0.0;
+        double ideal = idealDcg[idealDcg.length - 1];
+        m.ndcg = ideal > 0 ? dcg / ideal : 0.0;
+        return m;
+    }
+
+    private static void cutoff(Measures m, int k, int cutoff, double dcg, double[] idealDcg) {
+        m.p[k] = (double) m.numRelRet / cutoff;
+        m.recall[k] = m.numRel > 0 ? (double) m.numRelRet / m.numRel : 0.0;
+        double ideal = idealDcg[Math.min(cutoff, idealDcg.length - 1)];
+        m.ndcgCut[k] = ideal > 0 ? dcg / ideal : 0.0;
+    }
+
+    private static double log2(int x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    private static void print(StringBuilder out, String measure, String qid, double value) {
+        out.append(String.format(Locale.ROOT, "%-22s\t%s\t%.4f%n", measure, qid, value));
+    }
+
+    private static void print(StringBuilder out, String measure, String qid, long value) {
+        out.append(String.format(Locale.ROOT, "%-22s\t%s\t%d%n", measure, qid, value));
+    }
+
+    private static void print(StringBuilder out, String qid, Measures m, int[] cutoffs, int numQueries, String tag) {
+        if (tag != null) {
+            out.append(String.format(Locale.ROOT, "%-22s\t%s\t%s%n", "runid", qid, tag));
+            print(out, "num_q", qid, numQueries);
+        }
+        print(out, "num_ret", qid, m.numRet);
+        print(out, "num_rel", qid, m.numRel);
+        print(out, "num_rel_ret", qid, m.numRelRet);
+        print(out, "map", qid, m.map);
+        print(out, "recip_rank", qid, m.recipRank);
+        for (int k = 0; k < cutoffs.length; k++) print(out, "P_" + cutoffs[k], qid, m.p[k]);
+        for (int k = 0; k < cutoffs.length; k++) print(out, "recall_" + cutoffs[k], qid, m.recall[k]);
+        print(out, "ndcg", qid, m.ndcg);
+        for (int k = 0; k < cutoffs.length; k++) print(out, "ndcg_cut_" + cutoffs[k], qid, m.ndcgCut[k]);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String usage = "-run RUN [-qrels QRELS] [-q] [-cutoffs 5,10,...] [-level N] [-threads N] [-topics COMPILED]";
+        String run = null, qrels = null;
+        boolean perQuery = false;
+        int[] cutoffs = DEFAULT_CUTOFFS;
+        int level = 1;
+        Path topicsPath = TrecCovidTopics.COMPILED_PATH;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-run":
+                    run = args[++i];
+                    validateFile(run);
+                    break;
+                case "-qrels":
+                    qrels = args[++i];
+                    validateFile(qrels);
+                    break;
+                case "-topics":
+                    //Binario compilado con CompileTrecCovid -out
+                    topicsPath = TrecCovidTopics.compiledPath(args[++i]);
+                    break;
+                case "-q":
+                    perQuery = true;
+                    break;
+                case "-cutoffs":
+                    cutoffs = parseCutoffs(args[++i]);
+                    break;
+                case "-level":
+                    level = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    validateThreads(threads);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
+            }
+        }
+
+        if (run == null) {
+            System.out.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            //Juicios: el fichero indicado o los de TREC-COVID (compilados si existen)
+            Map<String, Map<String, Integer>> judgments;
+            if (qrels != null) {
+                judgments = new HashMap<>();
+                for (QrelsParser parser : parseFile(Paths.get(qrels), executor, threads, QrelsParser::new)) {
+                    parser.byQuery.forEach((qid, docs) -> judgments.computeIfAbsent(qid, q -> new HashMap<>()).putAll(docs));
+                }
+            } else {
+                judgments = TrecCovidTopics.load(topicsPath).getRelevance();
+            }
+
+            Map<String, List<RunEntry>> byQuery = new TreeMap<>();
+            String tag = "";
+            for (RunParser parser : parseFile(Paths.get(run), executor, threads, RunParser::new)) {
+                parser.byQuery.forEach((qid, entries) -> byQuery.computeIfAbsent(qid, q -> new ArrayList<>()).addAll(entries));
+                if (!parser.tag.isEmpty()) tag = parser.tag;
+            }
+
+            //Solo las queries de la run con juicios, en orden de qid como trec_eval
+            Map<String, Future<Measures>> tasks = new TreeMap<>();
+            for (Map.Entry<String, List<RunEntry>> query : byQuery.entrySet()) {
+                Map<String, Integer> queryJudgments = judgments.get(query.getKey());
+                if (queryJudgments == null) continue;
+                int[] c = cutoffs;
+                int l = level;
+                tasks.put(query.getKey(), executor.submit(() -> evaluate(query.getValue(), queryJudgments, c, l)));
+            }
+
+            Measures all = new Measures(cutoffs.length);
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Future<Measures>> task : tasks.entrySet()) {
+                Measures m = task.getValue().get();
+                if (perQuery) {
+                    print(out, task.getKey(), m, cutoffs, 1, null);
+                }
+                all.numRet += m.numRet;
+                all.numRel += m.numRel;
+                all.numRelRet += m.numRelRet;
+                all.map += m.map;
+                all.recipRank += m.recipRank;
+                all.ndcg += m.ndcg;
+                for (int k = 0; k < cutoffs.length; k++) {
+                    all.p[k] += m.p[k];
+                    all.recall[k] += m.recall[k];
+                    all.ndcgCut[k] += m.ndcgCut[k];
+                }
+            }
+            //Medias sobre las queries evaluadas
+            int n = Math.max(1, tasks.size());
+            all.map /= n;
+            all.recipRank /= n;
+            all.ndcg /= n;
+            for (int k = 0; k < cutoffs.length; k++) {
+                all.p[k] /= n;
+                all.recall[k] /= n;
+                all.ndcgCut[k] /= n;
+            }
+            print(out, "all", all, cutoffs, tasks.size(), tag);
+            System.out.print(out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Evaluación interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error al evaluar una query: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package es.udc.fic.ri;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Escribe rankings en formato de run de TREC ("qid Q0 docno rank score tag"), el que leen trec_eval y TrecEval.
+ */
+public class TrecRunWriter implements Closeable {
+
+    private final BufferedWriter writer;
+    private final String tag;
+
+    public TrecRunWriter(Path file, String tag) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        this.tag = tag;
+    }
+
+    //Todos los hits de la query, con el _id de la ExternalIdTable y rango desde 1
+    public synchronized void write(int queryId, QueryEvaluator.Result result) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < result.length(); i++) {
+            lines.append(queryId).append(" Q0 ").append(result.id(i)).append(' ').append(i + 1).append(' ')
+                    .append(result.score(i)).append(' ').append(tag).append('\n');
+        }
+        writer.write(lines.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
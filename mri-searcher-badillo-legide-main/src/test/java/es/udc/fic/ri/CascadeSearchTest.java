@@ -0,0 +1,134 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KeywordField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Con weight NaN, la cascada debe devolver lo mismo que volver a puntuar los candidatos de la primera fase con la
+ * segunda similitud en un IndexSearcher normal, sin la caché de TermStates ni de estadísticas.
+ */
+public class CascadeSearchTest
+{
+    private static final int DEPTH = 40;
+    private static final int K = 10;
+
+    private static Directory directory;
+    private static IndexReader reader;
+    private static IndexSearcher firstStage;
+    private static List<Query> queries;
+
+    @BeforeClass
+    public static void createIndex() throws IOException
+    {
+        directory = new ByteBuffersDirectory();
+        Random random = new Random(11);
+        //Varios segmentos, para que el re-ranking tenga que repartir los candidatos
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer()).setMaxBufferedDocs(100);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = 0; i < 500; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 5 + random.nextInt(60);
+                for (int j = 0; j < length; j++) {
+                    text.append("w").append(random.nextInt(80)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new KeywordField("_id", "doc" + i, Field.Store.YES));
+                doc.add(new TextField("text", text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        firstStage = new IndexSearcher(reader);
+        firstStage.setSimilarity(new BM25Similarity(1.2f, 0.75f));
+
+        queries = new ArrayList<>();
+        for (int q = 0; q < 8; q++) {
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            for (int t = 0; t < 1 + q % 4; t++) {
+                query.add(new TermQuery(new Term("text", "w" + random.nextInt(80))), BooleanClause.Occur.SHOULD);
+            }
+            queries.add(query.build());
+        }
+    }
+
+    @AfterClass
+    public static void close() throws IOException
+    {
+        reader.close();
+        directory.close();
+    }
+
+    //Los candidatos de la primera fase puntuados con la segunda similitud: la query filtrada por sus _id
+    private static ScoreDoc[] rescoreCandidates(Query query, Similarity second) throws IOException
+    {
+        List<BytesRef> ids = new ArrayList<>();
+        for (ScoreDoc candidate : firstStage.search(query, DEPTH).scoreDocs) {
+            ids.add(new BytesRef(firstStage.storedFields().document(candidate.doc).get("_id")));
+        }
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(second);
+        Query candidates = new BooleanQuery.Builder()
+                .add(query, BooleanClause.Occur.MUST)
+                .add(new TermInSetQuery("_id", ids), BooleanClause.Occur.FILTER)
+                .build();
+        return searcher.search(candidates, K).scoreDocs;
+    }
+
+    private static void assertSameRanking(Similarity second) throws IOException
+    {
+        CascadeSearch cascade = new CascadeSearch(firstStage, second, DEPTH, Double.NaN);
+        for (int q = 0; q < queries.size(); q++) {
+            Query query = queries.get(q);
+            ScoreDoc[] expected = rescoreCandidates(query, second);
+            ScoreDoc[] actual = cascade.search(q, query, K, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD).topHits().scoreDocs();
+            assertEquals("query " + query, expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("query " + query + " posición " + i, expected[i].doc, actual[i].doc);
+                assertEquals("query " + query + " posición " + i, expected[i].score, actual[i].score, 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void jelinekMercerRescoringMatchesPlainSearcher() throws IOException
+    {
+        assertSameRanking(new LMJelinekMercerSimilarity(0.1f));
+    }
+
+    @Test
+    public void bm25RescoringMatchesPlainSearcher() throws IOException
+    {
+        assertSameRanking(new BM25Similarity(0.6f, 0.75f));
+    }
+}
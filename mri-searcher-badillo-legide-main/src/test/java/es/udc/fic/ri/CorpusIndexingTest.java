@@ -0,0 +1,110 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Leer el corpus en streaming con un read-ahead pequeño o por rangos en varios hilos no debe perder ni repetir
+ * registros: el índice tiene los mismos documentos que el construido leyendo el corpus de forma secuencial.
+ */
+public class CorpusIndexingTest
+{
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int DOCS = 600;
+
+    private static Path corpus;
+    private static Map<String, String> sequential;
+
+    @BeforeClass
+    public static void createCorpus() throws IOException
+    {
+        corpus = folder.newFile("corpus.jsonl").toPath();
+        Random random = new Random(5);
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < DOCS; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 5 + random.nextInt(200);
+                for (int j = 0; j < length; j++) {
+                    text.append("w").append(random.nextInt(500)).append(' ');
+                }
+                writer.write(String.format(Locale.ROOT,
+                        "{\"_id\": \"doc%d\", \"title\": \"title %d\", \"text\": \"%s\", \"metadata\": {\"url\": \"http://x/%d\", \"pubmed_id\": \"%d\"}}%n",
+                        i, i, text.toString().trim(), i, i));
+            }
+        }
+        sequential = titlesById(index("-threads", "1"));
+    }
+
+    private static Path index(String... options) throws IOException
+    {
+        Path indexPath = folder.newFolder().toPath();
+        List<String> args = new ArrayList<>(List.of("-openmode", "create", "-index", indexPath.toString(), "-docs", corpus.toString(),
+                "-indexingmodel", "bm25", "1.2"));
+        args.addAll(List.of(options));
+        IndexTrecCovid.main(args.toArray(new String[0]));
+        return indexPath;
+    }
+
+    //Título de cada documento vivo por _id; falla si un _id está dos veces
+    private static Map<String, String> titlesById(Path indexPath) throws IOException
+    {
+        Map<String, String> titles = new TreeMap<>();
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            StoredFields storedFields = reader.storedFields();
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            for (int docID = 0; docID < reader.maxDoc(); docID++) {
+                if (liveDocs != null && !liveDocs.get(docID)) continue;
+                Document doc = storedFields.document(docID);
+                assertNull("_id repetido " + doc.get("_id"), titles.put(doc.get("_id"), doc.get("title")));
+            }
+        }
+        return titles;
+    }
+
+    @Test
+    public void sequentialIndexHasEveryRecord()
+    {
+        assertEquals(DOCS, sequential.size());
+        assertEquals("title 17", sequential.get("doc17"));
+    }
+
+    @Test
+    public void smallReadAheadIndexesSameDocs() throws IOException
+    {
+        assertEquals(sequential, titlesById(index("-threads", "1", "-readahead", "1")));
+    }
+
+    @Test
+    public void parallelRangesIndexSameDocsAsSequential() throws IOException
+    {
+        for (String threads : new String[]{"2", "4", "7"}) {
+            assertEquals("-threads " + threads, sequential, titlesById(index("-threads", threads)));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Volver a indexar el mismo corpus sobre un índice existente con -upsert o -delta no añade documentos nuevos, y un
+ * documento editado en el corpus queda una sola vez en el índice, con el contenido nuevo.
+ */
+public class IncrementalIndexingTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int DOCS = 200;
+
+    //Corpus de DOCS documentos (doc0 ... docN-1); los de edited llevan otro texto
+    private Path writeCorpus(int docs, int... edited) throws IOException
+    {
+        Path corpus = folder.newFile().toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < docs; i++) {
+                String text = "coronavirus w" + i + " w" + (i * 7 % 31);
+                for (int e : edited) {
+                    if (e == i) text = "edited sars w" + i;
+                }
+                writer.write(String.format(Locale.ROOT,
+                        "{\"_id\": \"doc%d\", \"title\": \"title %d\", \"text\": \"%s\", \"metadata\": {\"url\": \"http://x/%d\", \"pubmed_id\": \"%d\"}}%n",
+                        i, i, text, i, i));
+            }
+        }
+        return corpus;
+    }
+
+    //Indexa el corpus y devuelve el resumen JSON de la ejecución
+    private JsonNode index(Path indexPath, Path corpus, String openMode, String... options) throws IOException
+    {
+        Path summary = folder.newFile().toPath();
+        List<String> args = new ArrayList<>(List.of("-openmode", openMode, "-index", indexPath.toString(), "-docs", corpus.toString(),
+                "-indexingmodel", "bm25", "1.2", "-summary", summary.toString()));
+        args.addAll(List.of(options));
+        IndexTrecCovid.main(args.toArray(new String[0]));
+        return JsonMapper.builder().build().readTree(summary.toFile());
+    }
+
+    //Texto de cada documento vivo por _id; falla si un _id está dos veces
+    private static Map<String, String> textsById(Path indexPath) throws IOException
+    {
+        Map<String, String> texts = new TreeMap<>();
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            StoredFields storedFields = reader.storedFields();
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            for (int docID = 0; docID < reader.maxDoc(); docID++) {
+                if (liveDocs != null && !liveDocs.get(docID)) continue;
+                Document doc = storedFields.document(docID);
+                assertNull("_id repetido " + doc.get("_id"), texts.put(doc.get("_id"), doc.get("text")));
+            }
+        }
+        return texts;
+    }
+
+    @Test
+    public void upsertSecondRunAddsNothing() throws IOException
+    {
+        Path indexPath = folder.newFolder().toPath();
+        Path corpus = writeCorpus(DOCS);
+        assertEquals(DOCS, index(indexPath, corpus, "create_or_append", "-upsert").get("addDocument").asLong());
+        Map<String, String> first = textsById(indexPath);
+
+        JsonNode second = index(indexPath, corpus, "append", "-upsert");
+        assertEquals(0, second.get("addDocument").asLong());
+        assertEquals(DOCS, second.get("updateDocument").asLong());
+        assertEquals(first, textsById(indexPath));
+    }
+
+    @Test
+    public void upsertReplacesEditedDocOnce() throws IOException
+    {
+        Path indexPath = folder.newFolder().toPath();
+        index(indexPath, writeCorpus(DOCS), "create_or_append", "-upsert");
+        //Un documento editado y dos nuevos
+        index(indexPath, writeCorpus(DOCS + 2, 42), "append", "-upsert");
+
+        Map<String, String> texts = textsById(indexPath);
+        assertEquals(DOCS + 2, texts.size());
+        assertEquals("edited sars w42", texts.get("doc42"));
+        assertEquals("coronavirus w43 w22", texts.get("doc43"));
+    }
+
+    @Test
+    public void deltaSecondRunChangesNothing() throws IOException
+    {
+        Path indexPath = folder.newFolder().toPath();
+        Path corpus = writeCorpus(DOCS);
+        assertEquals(DOCS, index(indexPath, corpus, "create_or_append", "-delta").get("added").asLong());
+        Map<String, String> first = textsById(indexPath);
+
+        JsonNode second = index(indexPath, corpus, "append", "-delta");
+        assertEquals(0, second.get("added").asLong());
+        assertEquals(0, second.get("changed").asLong());
+        assertEquals(DOCS, second.get("unchanged").asLong());
+        assertEquals(0, second.get("removed").asLong());
+        assertEquals(first, textsById(indexPath));
+    }
+
+    @Test
+    public void deltaUpdatesOnlyEditedDocs() throws IOException
+    {
+        Path indexPath = folder.newFolder().toPath();
+        index(indexPath, writeCorpus(DOCS), "create_or_append", "-delta");
+        //Dos documentos editados, el último ya no está en el corpus
+        JsonNode second = index(indexPath, writeCorpus(DOCS - 1, 42, 100), "append", "-delta");
+        assertEquals(0, second.get("added").asLong());
+        assertEquals(2, second.get("changed").asLong());
+        assertEquals(DOCS - 3, second.get("unchanged").asLong());
+        assertEquals(1, second.get("removed").asLong());
+
+        Map<String, String> texts = textsById(indexPath);
+        assertEquals(DOCS - 1, texts.size());
+        assertEquals("edited sars w42", texts.get("doc42"));
+        assertEquals("edited sars w100", texts.get("doc100"));
+        assertNull(texts.get("doc" + (DOCS - 1)));
+    }
+}
@@ -0,0 +1,161 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ParallelGzipInputStream debe devolver exactamente los mismos bytes que GZIPInputStream,
+ * con un hilo y con varios, tanto con un solo miembro como con varios concatenados.
+ */
+public class ParallelGzipInputStreamTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Random random = new Random(42);
+
+    //Texto compresible de aproximadamente size bytes
+    private static byte[] text(int size)
+    {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size) {
+            text.append("{\"_id\": \"").append(random.nextInt(100000)).append("\", \"text\": \"w")
+                    .append(random.nextInt(300)).append(" coronavirus w").append(random.nextInt(300)).append("\"}\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] randomBytes(int size)
+    {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    //Datos con cabeceras gzip falsas, que en un miembro sin compresión aparecen tal cual en el fichero
+    private static byte[] fakeHeaders(int size)
+    {
+        byte[] bytes = text(size);
+        for (int i = 0; i + 4 <= bytes.length; i += 997) {
+            bytes[i] = 0x1f;
+            bytes[i + 1] = (byte) 0x8b;
+            bytes[i + 2] = 8;
+            bytes[i + 3] = 0;
+        }
+        return bytes;
+    }
+
+    private static byte[] member(byte[] data, int level) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private Path write(byte[]... members) throws IOException
+    {
+        Path file = folder.newFile().toPath();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (byte[] member : members) {
+                out.write(member);
+            }
+        }
+        return file;
+    }
+
+    private static byte[] readGzip(Path file) throws IOException
+    {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] readParallel(Path file, int threads) throws IOException
+    {
+        try (InputStream in = new ParallelGzipInputStream(file, threads)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void assertSameAsGzip(Path file) throws IOException
+    {
+        byte[] expected = readGzip(file);
+        assertArrayEquals(expected, readParallel(file, 1));
+        assertArrayEquals(expected, readParallel(file, 4));
+    }
+
+    @Test
+    public void singleMember() throws IOException
+    {
+        assertSameAsGzip(write(member(text(600 * 1024), Deflater.DEFAULT_COMPRESSION)));
+    }
+
+    @Test
+    public void singleEmptyMember() throws IOException
+    {
+        Path file = write(member(new byte[0], Deflater.DEFAULT_COMPRESSION));
+        assertEquals(0, readParallel(file, 1).length);
+        assertEquals(0, readParallel(file, 4).length);
+    }
+
+    @Test
+    public void multipleMembers() throws IOException
+    {
+        assertSameAsGzip(write(
+                member(text(1000), Deflater.DEFAULT_COMPRESSION),
+                //más grande que el trozo de salida (256 KB)
+                member(text(700 * 1024), Deflater.DEFAULT_COMPRESSION),
+                member(new byte[0], Deflater.DEFAULT_COMPRESSION),
+                //comprimido ocupa más que lo que se examina en cada búsqueda de cabeceras (1 MB)
+                member(randomBytes(1536 * 1024), Deflater.DEFAULT_COMPRESSION),
+                member(fakeHeaders(300 * 1024), Deflater.NO_COMPRESSION),
+                member(new byte[0], Deflater.DEFAULT_COMPRESSION),
+                member(text(10), Deflater.BEST_SPEED)));
+    }
+
+    @Test
+    public void manySmallMembers() throws IOException
+    {
+        byte[][] members = new byte[200][];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = member(i % 7 == 0 ? new byte[0] : text(random.nextInt(4096)), Deflater.DEFAULT_COMPRESSION);
+        }
+        assertSameAsGzip(write(members));
+    }
+
+    @Test
+    public void singleByteReads() throws IOException
+    {
+        Path file = write(member(text(2000), Deflater.DEFAULT_COMPRESSION), member(new byte[0], Deflater.DEFAULT_COMPRESSION),
+                member(text(3000), Deflater.DEFAULT_COMPRESSION));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new ParallelGzipInputStream(file, 4)) {
+            for (int b = in.read(); b != -1; b = in.read()) {
+                out.write(b);
+            }
+        }
+        assertArrayEquals(readGzip(file), out.toByteArray());
+    }
+}
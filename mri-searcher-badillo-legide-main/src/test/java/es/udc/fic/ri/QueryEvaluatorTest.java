@@ -0,0 +1,176 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KeywordField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Las métricas de QueryEvaluator, calculadas en una sola pasada por los hits, deben ser las mismas que las del
+ * cálculo original de SearchEvalTrecCovid: una pasada por corte y por métrica leyendo el _id de cada hit.
+ */
+public class QueryEvaluatorTest
+{
+    private static final int QUERIES = 6;
+    private static final int[] CUTS = {1, 3, 10, 25, 100};
+
+    private static Directory directory;
+    private static IndexReader reader;
+    private static IndexSearcher searcher;
+    private static Map<String, Map<String, Integer>> relevance;
+    private static ScoreDoc[][] hits;
+
+    @BeforeClass
+    public static void createIndex() throws IOException
+    {
+        directory = new ByteBuffersDirectory();
+        Random random = new Random(13);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < 300; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int j = 0; j < 20; j++) {
+                    text.append("w").append(random.nextInt(40)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new KeywordField("_id", "doc" + i, Field.Store.YES));
+                doc.add(new TextField("text", text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        //Juicios con etiquetas 0, 1 y 2, algunos de documentos que no están en el índice; la última query no tiene
+        relevance = new HashMap<>();
+        hits = new ScoreDoc[QUERIES + 1][];
+        for (int q = 1; q <= QUERIES; q++) {
+            if (q < QUERIES) {
+                Map<String, Integer> judgments = new HashMap<>();
+                for (int j = 0; j < 60; j++) {
+                    judgments.put("doc" + random.nextInt(330), random.nextInt(3));
+                }
+                relevance.put(String.valueOf(q), judgments);
+            }
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            for (int t = 0; t < 3; t++) {
+                query.add(new TermQuery(new Term("text", "w" + random.nextInt(40))), BooleanClause.Occur.SHOULD);
+            }
+            hits[q] = searcher.search(query.build(), 100).scoreDocs;
+        }
+    }
+
+    @AfterClass
+    public static void close() throws IOException
+    {
+        reader.close();
+        directory.close();
+    }
+
+    private static QueryEvaluator newEvaluator() throws IOException
+    {
+        return new QueryEvaluator(searcher, Judgments.build(reader, new TrecCovidTopics(new TreeMap<>(), relevance)));
+    }
+
+    private static boolean isRelevant(int queryId, ScoreDoc hit) throws IOException
+    {
+        String id = searcher.storedFields().document(hit.doc).get("_id");
+        return relevance.getOrDefault(String.valueOf(queryId), Map.of()).getOrDefault(id, 0) != 0;
+    }
+
+    //P@n, Recall@n, RR y AP@n como los calculaba SearchEvalTrecCovid, cada una con su propia pasada
+    private static double[] baseline(int queryId, ScoreDoc[] hits, int cut) throws IOException
+    {
+        int n = Math.min(cut, hits.length);
+        int relevantRetrieved = 0;
+        for (int i = 0; i < n; i++) {
+            if (isRelevant(queryId, hits[i])) relevantRetrieved++;
+        }
+        double precision = (double) relevantRetrieved / n;
+
+        int totalRelevant = 0;
+        for (int label : relevance.getOrDefault(String.valueOf(queryId), Map.of()).values()) {
+            if (label != 0) totalRelevant++;
+        }
+        double recall = totalRelevant != 0 ? (double) relevantRetrieved / totalRelevant : 0.0;
+
+        double reciprocalRank = 0.0;
+        for (int i = 0; i < n; i++) {
+            if (isRelevant(queryId, hits[i])) {
+                reciprocalRank = 1.0 / (i + 1);
+                break;
+            }
+        }
+
+        int retrieved = 0;
+        double precisionSum = 0;
+        for (int i = 0; i < n; i++) {
+            if (isRelevant(queryId, hits[i])) {
+                retrieved++;
+                precisionSum += (double) retrieved / (i + 1);
+            }
+        }
+        double averagePrecision = retrieved > 0 ? precisionSum / retrieved : 0.0;
+        return new double[]{precision, recall, reciprocalRank, averagePrecision};
+    }
+
+    private static void assertSameMetrics(String message, double[] expected, QueryEvaluator.Result result)
+    {
+        assertEquals(message + " P", expected[0], result.precision(), 1e-12);
+        assertEquals(message + " R", expected[1], result.recall(), 1e-12);
+        assertEquals(message + " RR", expected[2], result.reciprocalRank(), 1e-12);
+        assertEquals(message + " AP", expected[3], result.averagePrecision(), 1e-12);
+    }
+
+    @Test
+    public void singlePassMatchesPerCutBaseline() throws IOException
+    {
+        QueryEvaluator evaluator = newEvaluator();
+        boolean anyRelevant = false;
+        for (int q = 1; q <= QUERIES; q++) {
+            for (int cut : CUTS) {
+                double[] expected = baseline(q, hits[q], cut);
+                anyRelevant |= expected[0] > 0;
+                assertSameMetrics("query " + q + " cut " + cut, expected, evaluator.evaluate(q, hits[q], cut));
+            }
+        }
+        assertTrue(anyRelevant);
+    }
+
+    @Test
+    public void multipleCutsMatchSingleCuts() throws IOException
+    {
+        QueryEvaluator evaluator = newEvaluator();
+        for (int q = 1; q <= QUERIES; q++) {
+            QueryEvaluator.Result[] results = evaluator.evaluate(q, hits[q], CUTS);
+            assertEquals(CUTS.length, results.length);
+            for (int k = 0; k < CUTS.length; k++) {
+                assertSameMetrics("query " + q + " cut " + CUTS[k], baseline(q, hits[q], CUTS[k]), results[k]);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Perfilar una query no debe cambiar su resultado: QueryProfiler, que recorre los segmentos a mano sobre un lector
+ * que cuenta los postings, devuelve el mismo top-K que IndexSearcher.search.
+ */
+public class QueryProfilerTest
+{
+    private static final Similarity SIMILARITY = new BM25Similarity(1.2f, 0.75f);
+    private static final String[] QUERIES = {"w3", "w7 w12", "w1 w20 w33", "w5 OR w40 w41 w42", "+w2 +w9", "w80"};
+
+    private static Directory directory;
+    private static IndexReader reader;
+
+    @BeforeClass
+    public static void createIndex() throws IOException
+    {
+        directory = new ByteBuffersDirectory();
+        Random random = new Random(17);
+        //Varios segmentos y algunos borrados
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer()).setMaxBufferedDocs(150);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = 0; i < 600; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 5 + random.nextInt(50);
+                for (int j = 0; j < length; j++) {
+                    text.append("w").append(random.nextInt(60)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new StringField("_id", "doc" + i, Field.Store.YES));
+                doc.add(new TextField("text", text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.deleteDocuments(new Term("_id", "doc10"), new Term("_id", "doc200"), new Term("_id", "doc401"));
+        }
+        reader = DirectoryReader.open(directory);
+    }
+
+    @AfterClass
+    public static void close() throws IOException
+    {
+        reader.close();
+        directory.close();
+    }
+
+    private static void assertSameTopK(int k, int totalHitsThreshold) throws IOException, ParseException
+    {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(SIMILARITY);
+        QueryProfiler profiler = new QueryProfiler(reader, SIMILARITY);
+        for (int q = 0; q < QUERIES.length; q++) {
+            ScoreDoc[] expected = searcher.search(TrecCovidTopics.newQueryParser().parse(QUERIES[q]), k).scoreDocs;
+            ScoreDoc[] actual = profiler.profile(q, QUERIES[q], k, totalHitsThreshold).topHits().scoreDocs();
+            assertEquals(QUERIES[q], expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(QUERIES[q] + " posición " + i, expected[i].doc, actual[i].doc);
+                assertEquals(QUERIES[q] + " posición " + i, expected[i].score, actual[i].score, 0f);
+            }
+        }
+    }
+
+    @Test
+    public void profiledTopKMatchesSearch() throws IOException, ParseException
+    {
+        assertSameTopK(10, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD);
+    }
+
+    @Test
+    public void profiledTopKMatchesSearchWithExactTotalHits() throws IOException, ParseException
+    {
+        assertSameTopK(100, TopHits.EXACT);
+    }
+}
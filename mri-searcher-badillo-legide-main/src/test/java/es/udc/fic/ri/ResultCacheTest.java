@@ -0,0 +1,125 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Un acierto de la caché devuelve el mismo top-K que la búsqueda, y un índice borrado y creado de nuevo
+ * en la misma ruta no reutiliza las entradas del anterior.
+ */
+public class ResultCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Query QUERY = new TermQuery(new Term("text", "coronavirus"));
+
+    private static void createIndex(Path indexPath, int docs) throws IOException
+    {
+        if (Files.exists(indexPath)) {
+            try (Stream<Path> files = Files.walk(indexPath)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexPath), new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < docs; i++) {
+                Document doc = new Document();
+                String text = i % 3 == 0 ? "coronavirus coronavirus sars" : i % 2 == 0 ? "coronavirus immune" : "death diagnosis";
+                doc.add(new TextField("text", text + " w" + i, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    //Top-K de la query a través de la caché, abriendo la caché y el índice como una ejecución nueva
+    private static TopHits search(Path cacheDir, Path indexPath) throws IOException
+    {
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            ResultCache cache = ResultCache.open(cacheDir, 1 << 20, indexPath, reader);
+            return ResultCache.search(cache, new IndexSearcher(reader), 1, QUERY, 10, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD);
+        }
+    }
+
+    private static void assertSameHits(ScoreDoc[] expected, ScoreDoc[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].doc, actual[i].doc);
+            assertEquals(expected[i].score, actual[i].score, 0f);
+        }
+    }
+
+    @Test
+    public void hitReturnsSameRanking() throws IOException
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        Path cacheDir = folder.newFolder("cache").toPath();
+        createIndex(indexPath, 50);
+
+        TopHits searched = search(cacheDir, indexPath);
+        assertFalse(searched.fromCache());
+        TopHits cached = search(cacheDir, indexPath);
+        assertTrue(cached.fromCache());
+        assertSameHits(searched.scoreDocs(), cached.scoreDocs());
+    }
+
+    @Test
+    public void keysLongerThan64KB() throws IOException
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        Path cacheDir = folder.newFolder("cache").toPath();
+        createIndex(indexPath, 10);
+        Query longQuery = new TermQuery(new Term("text", "x".repeat(70 * 1024)));
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            ResultCache cache = ResultCache.open(cacheDir, 1 << 20, indexPath, reader);
+            assertFalse(ResultCache.search(cache, searcher, 1, longQuery, 10, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD).fromCache());
+            assertTrue(ResultCache.search(cache, searcher, 1, longQuery, 10, TopHits.DEFAULT_TOTAL_HITS_THRESHOLD).fromCache());
+        }
+    }
+
+    @Test
+    public void rebuiltIndexIsNotServedFromCache() throws IOException
+    {
+        Path indexPath = folder.newFolder("index").toPath();
+        Path cacheDir = folder.newFolder("cache").toPath();
+        createIndex(indexPath, 50);
+        search(cacheDir, indexPath);
+        assertTrue(search(cacheDir, indexPath).fromCache());
+
+        //Misma ruta y misma generación del commit, pero otros documentos
+        createIndex(indexPath, 80);
+        TopHits rebuilt = search(cacheDir, indexPath);
+        assertFalse(rebuilt.fromCache());
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            assertSameHits(new IndexSearcher(reader).search(QUERY, 10).scoreDocs, rebuilt.scoreDocs());
+        }
+    }
+}
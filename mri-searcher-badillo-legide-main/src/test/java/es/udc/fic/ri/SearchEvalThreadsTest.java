@@ -0,0 +1,117 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * SearchEvalTrecCovid con -threads N debe escribir los mismos CSV y TXT, byte a byte, que con -threads 1. Las
+ * queries y los juicios son los de src/test/resources/trec-covid.
+ */
+public class SearchEvalThreadsTest
+{
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    //SearchEvalTrecCovid escribe siempre aquí, relativo al directorio de trabajo
+    private static final Path OUTPUT = Paths.get("src/main/resources/searchEval");
+
+    private static Path indexPath;
+    private static Path createdOutput;
+    private static Set<Path> previousOutput;
+
+    @BeforeClass
+    public static void createIndex() throws IOException
+    {
+        Path corpus = folder.newFile("corpus.jsonl").toPath();
+        Random random = new Random(3);
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 300; i++) {
+                StringBuilder text = new StringBuilder(i % 2 == 0 ? "coronavirus " : "");
+                for (int j = 0; j < 30; j++) {
+                    text.append("w").append(random.nextInt(60)).append(' ');
+                }
+                writer.write(String.format(Locale.ROOT,
+                        "{\"_id\": \"doc%d\", \"title\": \"title %d\", \"text\": \"%s\", \"metadata\": {\"url\": \"http://x/%d\", \"pubmed_id\": \"%d\"}}%n",
+                        i, i, text.toString().trim(), i, i));
+            }
+        }
+        indexPath = folder.newFolder().toPath();
+        IndexTrecCovid.main(new String[]{"-openmode", "create", "-index", indexPath.toString(), "-docs", corpus.toString(),
+                "-indexingmodel", "bm25", "1.2"});
+
+        //Primer directorio que no existía, para borrarlo al terminar
+        for (Path dir = OUTPUT; dir != null && !Files.exists(dir); dir = dir.getParent()) {
+            createdOutput = dir;
+        }
+        Files.createDirectories(OUTPUT);
+        previousOutput = listOutput();
+    }
+
+    @AfterClass
+    public static void removeOutput() throws IOException
+    {
+        for (Path dir = OUTPUT; createdOutput != null; dir = dir.getParent()) {
+            Files.delete(dir);
+            if (dir.equals(createdOutput)) break;
+        }
+    }
+
+    private static Set<Path> listOutput() throws IOException
+    {
+        try (Stream<Path> files = Files.list(OUTPUT)) {
+            return files.collect(Collectors.toCollection(HashSet::new));
+        }
+    }
+
+    //Ejecuta la evaluación y devuelve el contenido de los ficheros que ha escrito, que se borran
+    private static Map<String, String> searchEval(String threads) throws IOException, ParseException
+    {
+        SearchEvalTrecCovid.main(new String[]{"-search", "bm25", "1.2", "-index", indexPath.toString(), "-cut", "10",
+                "-top", "5", "-queries", "1-8", "-threads", threads});
+        Map<String, String> output = new TreeMap<>();
+        for (Path file : listOutput()) {
+            if (previousOutput.contains(file)) continue;
+            //Los tiempos de cada query cambian de una ejecución a otra
+            if (!file.getFileName().toString().endsWith(".latency.csv")) {
+                output.put(file.getFileName().toString(), Files.readString(file, StandardCharsets.UTF_8));
+            }
+            Files.delete(file);
+        }
+        return output;
+    }
+
+    @Test
+    public void threadsWriteSameOutputAsSequential() throws IOException, ParseException
+    {
+        Map<String, String> sequential = searchEval("1");
+        assertEquals(2, sequential.size());
+        //Alguna query encuentra documentos relevantes
+        assertFalse(sequential.values().stream().anyMatch(text -> text.contains("promedios,0.0,0.0,0.0,0.0")));
+        for (String threads : List.of("2", "4")) {
+            assertEquals("-threads " + threads, sequential, searchEval(threads));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Un índice repartido en shards se busca con las estadísticas del corpus completo: debe devolver los mismos
+ * documentos con los mismos scores que el índice sin particionar.
+ */
+public class ShardedIndexTest
+{
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] QUERIES = {"coronavirus", "sars death", "w3 w17 immune", "title:w5 diagnosis"};
+
+    private static Path oneShard;
+    private static Path threeShards;
+
+    @BeforeClass
+    public static void createIndexes() throws IOException
+    {
+        Path corpus = folder.newFile("corpus.jsonl").toPath();
+        String[] topicWords = {"coronavirus", "sars", "death", "immune", "diagnosis"};
+        Random random = new Random(3);
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 400; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 5 + random.nextInt(60);
+                for (int j = 0; j < length; j++) {
+                    text.append(random.nextInt(8) == 0 ? topicWords[random.nextInt(topicWords.length)] : "w" + random.nextInt(50)).append(' ');
+                }
+                writer.write(String.format(Locale.ROOT,
+                        "{\"_id\": \"doc%d\", \"title\": \"w%d w%d\", \"text\": \"%s\", \"metadata\": {\"url\": \"http://x/%d\", \"pubmed_id\": \"%d\"}}%n",
+                        i, random.nextInt(50), random.nextInt(50), text.toString().trim(), i, i));
+            }
+        }
+
+        oneShard = folder.newFolder("one").toPath();
+        threeShards = folder.newFolder("three").toPath();
+        IndexTrecCovid.main(new String[]{"-openmode", "create", "-index", oneShard.toString(), "-docs", corpus.toString(),
+                "-indexingmodel", "bm25", "1.2", "-shards", "1"});
+        IndexTrecCovid.main(new String[]{"-openmode", "create", "-index", threeShards.toString(), "-docs", corpus.toString(),
+                "-indexingmodel", "bm25", "1.2", "-shards", "3"});
+    }
+
+    //Todos los hits de la query como "_id score", ordenados por score y _id: los empates dependen de los docIDs
+    private static List<String> search(Path indexPath, Similarity similarity, String query) throws IOException, ParseException
+    {
+        try (IndexReader reader = ShardedIndex.open(indexPath)) {
+            ExecutorService executor = ShardedIndex.newExecutor(reader);
+            try {
+                IndexSearcher searcher = ShardedIndex.newSearcher(reader, executor);
+                searcher.setSimilarity(similarity);
+                QueryParser parser = TrecCovidTopics.newQueryParser();
+                ScoreDoc[] hits = searcher.search(parser.parse(query), reader.maxDoc()).scoreDocs;
+                ExternalIdTable ids = ExternalIdTable.forReader(reader);
+
+                List<ScoreDoc> sorted = new ArrayList<>(List.of(hits));
+                sorted.sort(Comparator.comparingDouble((ScoreDoc hit) -> -hit.score).thenComparing(hit -> ids.id(hit.doc)));
+                List<String> result = new ArrayList<>();
+                for (ScoreDoc hit : sorted) {
+                    result.add(ids.id(hit.doc) + " " + hit.score);
+                }
+                return result;
+            } finally {
+                if (executor != null)
+                    executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void indexesHaveExpectedLayout() throws IOException
+    {
+        assertEquals(0, ShardedIndex.shardPaths(oneShard).size());
+        assertEquals(3, ShardedIndex.shardPaths(threeShards).size());
+        try (IndexReader one = ShardedIndex.open(oneShard); IndexReader three = ShardedIndex.open(threeShards)) {
+            assertEquals(400, one.numDocs());
+            assertEquals(400, three.numDocs());
+            assertEquals(3, ShardedIndex.numShards(three));
+        }
+    }
+
+    @Test
+    public void shardsGiveSameRankingAndScores() throws IOException, ParseException
+    {
+        Similarity[] similarities = {new BM25Similarity(1.2f, 0.75f), new LMJelinekMercerSimilarity(0.1f)};
+        for (Similarity similarity : similarities) {
+            for (String query : QUERIES) {
+                List<String> expected = search(oneShard, similarity, query);
+                assertFalse(expected.isEmpty());
+                assertEquals(similarity + " " + query, expected, search(threeShards, similarity, query));
+            }
+        }
+    }
+}
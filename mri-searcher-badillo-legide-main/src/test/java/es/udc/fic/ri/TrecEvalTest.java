@@ -0,0 +1,170 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KeywordField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Una run pequeña escrita con TrecRunWriter y evaluada con TrecEval debe dar las mismas medidas que trec_eval.
+ * Hay empates de score: trec_eval los ordena por docno descendente, no por el orden de la run.
+ */
+public class TrecEvalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] IDS = {"d1", "d2", "d3", "d4", "d5", "d6", "d7", "d9", "e1", "e2", "e3", "e4"};
+
+    //qrels de BEIR, con cabecera; la query 4 no está en la run y la 3 no tiene juicios
+    private static final String QRELS = "query-id\tcorpus-id\tscore\n"
+            + "1\td1\t1\n1\td3\t2\n1\td5\t1\n1\td7\t0\n1\td9\t1\n"
+            + "2\te1\t1\n2\te2\t1\n"
+            + "4\td1\t1\n";
+
+    private static Map<String, Map<String, Integer>> relevance()
+    {
+        Map<String, Map<String, Integer>> relevance = new HashMap<>();
+        for (String line : QRELS.split("\n")) {
+            String[] parts = line.split("\t");
+            if (!parts[0].equals("query-id")) {
+                relevance.computeIfAbsent(parts[0], q -> new HashMap<>()).put(parts[1], Integer.parseInt(parts[2]));
+            }
+        }
+        return relevance;
+    }
+
+    private static ScoreDoc hit(String id, float score)
+    {
+        return new ScoreDoc(Arrays.asList(IDS).indexOf(id), score);
+    }
+
+    //Escribe la run con TrecRunWriter, con los hits en el orden dado (los empates no van en orden de trec_eval)
+    private Path writeRun() throws IOException
+    {
+        Path run = folder.newFile("run.txt").toPath();
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (String id : IDS) {
+                    Document doc = new Document();
+                    doc.add(new KeywordField("_id", id, Field.Store.YES));
+                    writer.addDocument(doc);
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(directory);
+                 TrecRunWriter runWriter = new TrecRunWriter(run, "test")) {
+                QueryEvaluator evaluator = new QueryEvaluator(new IndexSearcher(reader), Judgments.build(reader, new TrecCovidTopics(new TreeMap<>(), relevance())));
+                ScoreDoc[] query1 = {hit("d1", 3f), hit("d2", 2f), hit("d3", 2f), hit("d4", 1.5f), hit("d5", 1f), hit("d6", 1f), hit("d7", 0.5f)};
+                ScoreDoc[] query2 = {hit("e3", 5f), hit("e4", 4f), hit("e2", 4f), hit("e1", 1f)};
+                ScoreDoc[] query3 = {hit("d1", 1f)};
+                runWriter.write(1, evaluator.evaluate(1, query1, 10));
+                runWriter.write(2, evaluator.evaluate(2, query2, 10));
+                runWriter.write(3, evaluator.evaluate(3, query3, 10));
+            }
+        }
+        return run;
+    }
+
+    //"medida\tqid" -> valor de la salida de TrecEval
+    private static Map<String, String> trecEval(String... args) throws IOException
+    {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+            TrecEval.main(args);
+        } finally {
+            System.setOut(stdout);
+        }
+        Map<String, String> measures = new LinkedHashMap<>();
+        for (String line : out.toString(StandardCharsets.UTF_8).split("\\R")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 3) {
+                measures.put(parts[0] + "\t" + parts[1], parts[2]);
+            }
+        }
+        return measures;
+    }
+
+    @Test
+    public void runWriterUsesTrecFormat() throws IOException
+    {
+        List<String> lines = Files.readAllLines(writeRun());
+        assertEquals(12, lines.size());
+        assertEquals("1 Q0 d1 1 3.0 test", lines.get(0));
+        assertEquals("1 Q0 d2 2 2.0 test", lines.get(1));
+        assertEquals("2 Q0 e4 2 4.0 test", lines.get(8));
+        assertEquals("3 Q0 d1 1 1.0 test", lines.get(11));
+    }
+
+    @Test
+    public void measuresMatchTrecEval() throws IOException
+    {
+        Path run = writeRun();
+        Path qrels = folder.newFile("qrels.tsv").toPath();
+        Files.write(qrels, QRELS.getBytes(StandardCharsets.UTF_8));
+
+        for (String threads : new String[]{"1", "3"}) {
+            Map<String, String> m = trecEval("-run", run.toString(), "-qrels", qrels.toString(), "-cutoffs", "5,10", "-q", "-threads", threads);
+
+            //Query 1 en orden de trec_eval: d1 (R), d3 (R), d2, d4, d6, d5 (R), d7; d9 relevante sin recuperar
+            assertEquals("7", m.get("num_ret\t1"));
+            assertEquals("4", m.get("num_rel\t1"));
+            assertEquals("3", m.get("num_rel_ret\t1"));
+            assertEquals("0.6250", m.get("map\t1"));
+            assertEquals("1.0000", m.get("recip_rank\t1"));
+            assertEquals("0.4000", m.get("P_5\t1"));
+            assertEquals("0.3000", m.get("P_10\t1"));
+            assertEquals("0.5000", m.get("recall_5\t1"));
+            assertEquals("0.7500", m.get("recall_10\t1"));
+
+            //Query 2 en orden de trec_eval: e3, e4, e2 (R), e1 (R)
+            assertEquals("0.4167", m.get("map\t2"));
+            assertEquals("0.3333", m.get("recip_rank\t2"));
+            assertEquals("0.4000", m.get("P_5\t2"));
+            assertEquals("0.2000", m.get("P_10\t2"));
+            assertEquals("1.0000", m.get("recall_5\t2"));
+
+            //Solo se evalúan las queries de la run con juicios
+            assertNull(m.get("map\t3"));
+            assertEquals("test", m.get("runid\tall"));
+            assertEquals("2", m.get("num_q\tall"));
+            assertEquals("11", m.get("num_ret\tall"));
+            assertEquals("6", m.get("num_rel\tall"));
+            assertEquals("5", m.get("num_rel_ret\tall"));
+            assertEquals("0.5208", m.get("map\tall"));
+            assertEquals("0.6667", m.get("recip_rank\tall"));
+            assertEquals("0.4000", m.get("P_5\tall"));
+            assertEquals("0.2500", m.get("P_10\tall"));
+            assertEquals("0.7500", m.get("recall_5\tall"));
+            assertEquals("0.8750", m.get("recall_10\tall"));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package es.udc.fic.ri;
+
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Informe periódico del progreso de WebIndexer: páginas indexadas/s, MB/s descargados, uso del buffer de RAM del
+ * IndexWriter, flushes y merges y tiempo restante estimado por las URLs que quedan. Al terminar genera un resumen
+ * en JSON. Es el mismo informe que el de IndexTrecCovid, con las URLs en lugar de los bytes del corpus.
+ */
+public class IndexingProgress {
+
+    /*
+     * Directorio que cuenta cada segmento que se vuelca a disco: al sellar un segmento el IndexWriter escribe su
+     * .si con un IOContext de flush (los merges usan uno de merge)
+     */
+    private static class FlushCountingDirectory extends FilterDirectory {
+        private final AtomicInteger flushes = new AtomicInteger();
+
+        private FlushCountingDirectory(Directory in) {
+            super(in);
+        }
+
+        @Override
+        public IndexOutput createOutput(String name, IOContext context) throws IOException {
+            if (context.context == IOContext.Context.FLUSH && "si".equals(IndexFileNames.getExtension(name))) {
+                flushes.incrementAndGet();
+            }
+            return super.createOutput(name, context);
+        }
+    }
+
+    //IndexWriter que cuenta los flushes y merges terminados
+    public static class CountingIndexWriter extends IndexWriter {
+        private final FlushCountingDirectory flushCounter;
+        private final AtomicInteger merges = new AtomicInteger();
+
+        public CountingIndexWriter(Directory directory, IndexWriterConfig config) throws IOException {
+            this(new FlushCountingDirectory(directory), config);
+        }
+
+        private CountingIndexWriter(FlushCountingDirectory flushCounter, IndexWriterConfig config) throws IOException {
+            super(flushCounter, config);
+            this.flushCounter = flushCounter;
+        }
+
+        @Override
+        protected void mergeSuccess(MergePolicy.OneMerge merge) {
+            merges.incrementAndGet();
+        }
+
+        public int getFlushes() {
+            return flushCounter.flushes.get();
+        }
+
+        public int getMerges() {
+            return merges.get();
+        }
+    }
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final CountingIndexWriter indexWriter;
+    private final long totalUrls;
+    private final double ramBufferMB;
+    private final LongAdder urls = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private ScheduledExecutorService scheduler;
+    private long startNanos;
+    private long endNanos = -1;
+
+    public IndexingProgress(CountingIndexWriter indexWriter, long totalUrls) {
+        this.indexWriter = indexWriter;
+        this.totalUrls = totalUrls;
+        this.ramBufferMB = indexWriter.getConfig().getRAMBufferSizeMB();
+    }
+
+    //Una URL de los ficheros .url terminada, se haya indexado o no
+    public void urlProcessed() {
+        urls.increment();
+    }
+
+    //Una página indexada, con el tamaño de lo descargado
+    public void documentIndexed(long pageBytes) {
+        documents.increment();
+        bytes.add(pageBytes);
+    }
+
+    public void start(int intervalSeconds) {
+        startNanos = System.nanoTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "indexing-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(statusLine()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        endNanos = System.nanoTime();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        System.out.println(statusLine());
+    }
+
+    private double elapsedSeconds() {
+        return ((endNanos < 0 ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+    }
+
+    private static String formatTime(long seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private long ramBytesUsed() {
+        return indexWriter.isOpen() ? indexWriter.ramBytesUsed() : 0;
+    }
+
+    private String statusLine() {
+        double elapsed = Math.max(elapsedSeconds(), 1e-9);
+        long docs = documents.sum();
+        long done = urls.sum();
+        double urlsPerSecond = done / elapsed;
+        String eta = "--:--:--";
+        if (totalUrls > 0 && urlsPerSecond > 0) {
+            eta = formatTime((long) (Math.max(0, totalUrls - done) / urlsPerSecond));
+        }
+        return String.format("Indexadas %d páginas (%d/%d URLs) en %s (%.1f docs/s, %.2f MB/s) | buffer RAM %.1f/%.0f MB | flushes %d, merges %d | ETA %s",
+                docs, done, totalUrls, formatTime((long) elapsed), docs / elapsed, bytes.sum() / MB / elapsed,
+                ramBytesUsed() / MB, ramBufferMB, indexWriter.getFlushes(), indexWriter.getMerges(), eta);
+    }
+
+    public Map<String, Object> summary() {
+        double elapsed = Math.max(elapsedSeconds(), 1e-9);
+        long docs = documents.sum();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("urls", urls.sum());
+        summary.put("totalUrls", totalUrls);
+        summary.put("documents", docs);
+        summary.put("bytesDownloaded", bytes.sum());
+        summary.put("elapsedSeconds", elapsed);
+        summary.put("docsPerSecond", docs / elapsed);
+        summary.put("mbPerSecond", bytes.sum() / MB / elapsed);
+        summary.put("ramBufferMB", ramBufferMB);
+        summary.put("flushes", indexWriter.getFlushes());
+        summary.put("merges", indexWriter.getMerges());
+        return summary;
+    }
+
+    public void writeSummary(Path file) throws IOException {
+        JsonMapper.builder().enable(SerializationFeature.INDENT_OUTPUT).build()
+                .writeValue(file.toFile(), summary());
+    }
+}
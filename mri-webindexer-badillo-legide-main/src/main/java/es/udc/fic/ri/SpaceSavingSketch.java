@@ -0,0 +1,158 @@
+package es.udc.fic.ri;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Resumen Space-Saving (Metwally et al.) para estimar los términos más frecuentes
+ * con una cantidad fija de contadores.
+ *
+ * Con k contadores y N actualizaciones, la cuenta estimada de cada término sobreestima
+ * la real como mucho en N/k, y cada contador guarda además su propia cota de error.
+ */
+public class SpaceSavingSketch {
+
+    public static final class Counter {
+        private final String term;
+        private long count;
+        private long error;
+
+        private Counter(String term, long count, long error) {
+            this.term = term;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getTerm() {
+            return term;
+        }
+
+        //Cuenta estimada (cota superior de la cuenta real)
+        public long getCount() {
+            return count;
+        }
+
+        //Sobreestimación máxima de la cuenta
+        public long getError() {
+            return error;
+        }
+    }
+
+    //Orden por cuenta ascendente y término para desempatar, así first() es siempre el contador mínimo
+    private static final Comparator<Counter> BY_COUNT =
+            Comparator.comparingLong(Counter::getCount).thenComparing(Counter::getTerm);
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> ordered = new TreeSet<>(BY_COUNT);
+    private long totalCount = 0;
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("El número de contadores debe ser mayor que 0");
+        this.capacity = capacity;
+        this.counters = new HashMap<>(Math.min(capacity, 1 << 16) * 2);
+    }
+
+    //Número de contadores necesario para garantizar un error relativo epsilon (error <= epsilon * N)
+    public static int capacityForError(double epsilon) {
+        if (!(epsilon > 0) || epsilon >= 1)
+            throw new IllegalArgumentException("El error relativo debe estar en el rango (0-1)");
+        return (int) Math.ceil(1.0 / epsilon);
+    }
+
+    public void add(String term) {
+        add(term, 1);
+    }
+
+    public void add(String term, long weight) {
+        totalCount += weight;
+        Counter counter = counters.get(term);
+        if (counter != null) {
+            increment(counter, weight, 0);
+        } else if (counters.size() < capacity) {
+            counter = new Counter(term, weight, 0);
+            counters.put(term, counter);
+            ordered.add(counter);
+        } else {
+            //Se reemplaza el contador mínimo: el nuevo término hereda su cuenta como error
+            Counter min = ordered.pollFirst();
+            counters.remove(min.term);
+            counter = new Counter(term, min.count + weight, min.count);
+            counters.put(term, counter);
+            ordered.add(counter);
+        }
+    }
+
+    private void increment(Counter counter, long weight, long error) {
+        ordered.remove(counter);
+        counter.count += weight;
+        counter.error += error;
+        ordered.add(counter);
+    }
+
+    //Cuenta mínima del resumen; cualquier término ausente aparece como mucho esas veces
+    private long minCount() {
+        return counters.size() < capacity ? 0 : ordered.first().count;
+    }
+
+    /**
+     * Combina dos resúmenes (Agarwal et al., "Mergeable summaries"): los términos ausentes en uno
+     * de ellos reciben la cuenta mínima de ese resumen como cuenta y como error, y se conservan los
+     * k contadores mayores. El error total sigue acotado por (N1 + N2) / k.
+     */
+    public SpaceSavingSketch merge(SpaceSavingSketch other) {
+        SpaceSavingSketch merged = new SpaceSavingSketch(Math.min(capacity, other.capacity));
+        long thisMin = minCount();
+        long otherMin = other.minCount();
+
+        Set<String> terms = new HashSet<>(counters.keySet());
+        terms.addAll(other.counters.keySet());
+
+        List<Counter> candidates = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Counter a = counters.get(term);
+            Counter b = other.counters.get(term);
+            long count = (a != null ? a.count : thisMin) + (b != null ? b.count : otherMin);
+            long error = (a != null ? a.error : thisMin) + (b != null ? b.error : otherMin);
+            candidates.add(new Counter(term, count, error));
+        }
+        candidates.sort(BY_COUNT.reversed());
+
+        for (Counter counter : candidates.subList(0, Math.min(merged.capacity, candidates.size()))) {
+            merged.counters.put(counter.term, counter);
+            merged.ordered.add(counter);
+        }
+        merged.totalCount = totalCount + other.totalCount;
+        return merged;
+    }
+
+    //Contadores ordenados de mayor a menor cuenta estimada
+    public List<Counter> top(int n) {
+        List<Counter> result = new ArrayList<>(Math.min(n, counters.size()));
+        for (Counter counter : ordered.descendingSet()) {
+            if (result.size() >= n) break;
+            result.add(counter);
+        }
+        return result;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    //Cota garantizada del error de cualquier cuenta estimada: N / k
+    public long getErrorBound() {
+        return (long) Math.ceil((double) totalCount / capacity);
+    }
+}
@@ -11,6 +11,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Pattern;
 
 public class TopTermsInDoc{
@@ -54,6 +56,53 @@ public class TopTermsInDoc{
         }
     }
 
+    private static void validateNumThreads(int numThreads, int numCores){
+        if(numThreads < 0 || numThreads > numCores)
+            throw new IllegalArgumentException("El número de threads debe ser 0 para usar el número de núcleos de la máquina o positvo y como máximo " + numCores);
+    }
+
+    //df de cada término consultando el reader completo
+    static int[] docFreqs(IndexReader reader, String field, List<BytesRef> terms) throws IOException {
+        int[] docFreqs = new int[terms.size()];
+        for (int i = 0; i < terms.size(); i++) {
+            docFreqs[i] = reader.docFreq(new Term(field, terms.get(i)));
+        }
+        return docFreqs;
+    }
+
+    //df de cada término buscándolo en cada segmento por separado en el pool y sumando los parciales
+    static int[] docFreqs(IndexReader reader, String field, List<BytesRef> terms, ForkJoinPool pool) throws IOException {
+        List<ForkJoinTask<int[]>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            tasks.add(pool.submit(() -> {
+                int[] leafDocFreqs = new int[terms.size()];
+                Terms leafTerms = context.reader().terms(field);
+                if (leafTerms != null) {
+                    TermsEnum termsEnum = leafTerms.iterator();
+                    for (int i = 0; i < terms.size(); i++) {
+                        if (termsEnum.seekExact(terms.get(i))) {
+                            leafDocFreqs[i] = termsEnum.docFreq();
+                        }
+                    }
+                }
+                return leafDocFreqs;
+            }));
+        }
+
+        int[] docFreqs = new int[terms.size()];
+        for (ForkJoinTask<int[]> task : tasks) {
+            try {
+                int[] leafDocFreqs = task.get();
+                for (int i = 0; i < docFreqs.length; i++) {
+                    docFreqs[i] += leafDocFreqs[i];
+                }
+            } catch (Exception e) {
+                throw new IOException("Error al calcular el df en un segmento", e);
+            }
+        }
+        return docFreqs;
+    }
+
     private static int findDocIDByUrl(IndexReader reader, String url) throws IOException {
         for (int docID = 0; docID < reader.maxDoc(); docID++) {
             Document doc = reader.document(docID);
@@ -69,13 +118,15 @@ public class TopTermsInDoc{
 
     public static void main(String[] args){
 
-        String usage = " -index INDEX_PATH -field FIELD (-docID int | -url URL) -top n -outfile PATH";
+        String usage = " -index INDEX_PATH -field FIELD (-docID int | -url URL) -top n -outfile PATH [-numThreads NUM_THREADS]";
         String indexPath = null;
         String field = null;
         int docID = -1;
         int top = -1;
         String outfilePath = null;
         String url = null;
+        final int numCores = Runtime.getRuntime().availableProcessors();
+        int numThreads = 0; //0 para usar todos los núcleos, 1 para consultar el reader completo
 
         for (int i = 0; i < args.length; i++){
             switch (args[i]){
@@ -103,6 +154,10 @@ public class TopTermsInDoc{
                     url = args[++i];
                     validateUrl(url);
                     break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    validateNumThreads(numThreads, numCores);
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
@@ -114,6 +169,10 @@ public class TopTermsInDoc{
             System.exit(1);
         }
 
+        if (numThreads == 0) {
+            numThreads = numCores;
+        }
+
         //Paso la url al formato con el que se guardan los .loc.notags
         if (url != null){
             url = url.replaceAll("^(https?://)", "").replaceAll("/", "_") + ".loc";
@@ -140,14 +199,29 @@ public class TopTermsInDoc{
             if (terms != null){
                 TermsEnum termsEnum = terms.iterator();
                 BytesRef text;
+                List<BytesRef> docTerms = new ArrayList<>();
                 while ((text = termsEnum.next()) != null){
                     String termText = text.utf8ToString();
 
                     int freq = (int) termsEnum.totalTermFreq(); //tf
                     termFreqMap.put(termText, freq);
+                    docTerms.add(BytesRef.deepCopyOf(text));
+                }
 
-                    int docFreq = reader.docFreq(new Term(field, termText)); //df
-                    docFreqMap.put(termText, docFreq);
+                //df de todos los términos del documento de una vez, por segmentos si hay varios threads
+                int[] docFreqs;
+                if (numThreads == 1) {
+                    docFreqs = docFreqs(reader, field, docTerms);
+                } else {
+                    ForkJoinPool pool = new ForkJoinPool(numThreads);
+                    try {
+                        docFreqs = docFreqs(reader, field, docTerms, pool);
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+                for (int i = 0; i < docTerms.size(); i++) {
+                    docFreqMap.put(docTerms.get(i).utf8ToString(), docFreqs[i]);
                 }
 
                 for (Map.Entry<String, Integer> entry : termFreqMap.entrySet()){ //Calcular tf*idflog10
@@ -163,7 +237,7 @@ public class TopTermsInDoc{
 
             // Crear una lista ordenada de los términos según su TF * IDF (tfidf)
             List<Map.Entry<String, Double>> sortedTerms = new ArrayList<>(tfidfMap.entrySet());
-            sortedTerms.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+            sortedTerms.sort(Map.Entry.<String, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
 
             // Abrir el archivo de salida para escribir los resultados
             try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfilePath))){ //newFileWriter con opcion false por defecto para sobreescribir
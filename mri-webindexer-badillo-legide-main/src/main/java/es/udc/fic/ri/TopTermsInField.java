@@ -10,6 +10,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 public class TopTermsInField {
@@ -34,13 +36,136 @@ public class TopTermsInField {
         }
     }
 
+    private static void validateApprox(double epsilon){
+        if(!(epsilon > 0) || epsilon >= 1)
+            throw new IllegalArgumentException("El error relativo de -approx debe estar en el rango (0-1)");
+    }
+
+    private static void validateNumThreads(int numThreads, int numCores){
+        if(numThreads < 0 || numThreads > numCores)
+            throw new IllegalArgumentException("El número de threads debe ser 0 para usar el número de núcleos de la máquina o positvo y como máximo " + numCores);
+    }
+
+    //Añade al mapa la frecuencia de documento de cada término recorriendo los term vectors de los documentos
+    private static void countLeaf(IndexReader reader, String field, Map<String, Integer> termDocFreqMap) throws IOException {
+        TermVectors termvectors = reader.termVectors();
+        for (int docID = 0; docID < reader.maxDoc(); docID++) {
+            Terms terms = termvectors.get(docID, field);
+            if (terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    String termText = term.utf8ToString();
+                    //Guardo en el mapa el termino que encuentro y si no estaba consigo 0 y le añado 1, en otro caso añado uno mas al valor que tenia
+                    //es decir, añado uno más a la frecuencia de documentos que tenia
+                    termDocFreqMap.put(termText, termDocFreqMap.getOrDefault(termText, 0) + 1);
+                }
+            }
+        }
+    }
+
+    //Recorrido secuencial sobre el reader completo
+    static Map<String, Integer> countDocFreqs(IndexReader reader, String field) throws IOException {
+        Map<String, Integer> termDocFreqMap = new HashMap<>();
+        countLeaf(reader, field, termDocFreqMap);
+        return termDocFreqMap;
+    }
+
+    //Un mapa por segmento en el pool y suma de los mapas parciales al final
+    static Map<String, Integer> countDocFreqs(IndexReader reader, String field, ForkJoinPool pool) throws IOException {
+        List<ForkJoinTask<Map<String, Integer>>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            tasks.add(pool.submit(() -> {
+                Map<String, Integer> leafMap = new HashMap<>();
+                countLeaf(context.reader(), field, leafMap);
+                return leafMap;
+            }));
+        }
+
+        Map<String, Integer> termDocFreqMap = new HashMap<>();
+        for (ForkJoinTask<Map<String, Integer>> task : tasks) {
+            try {
+                task.get().forEach((term, docFreq) -> termDocFreqMap.merge(term, docFreq, Integer::sum));
+            } catch (Exception e) {
+                throw new IOException("Error al contar los términos de un segmento", e);
+            }
+        }
+        return termDocFreqMap;
+    }
+
+    //Ordena los términos por frecuencia de documento descendente; los empates por término para que la salida no dependa del orden del mapa
+    static List<Map.Entry<String, Integer>> sortByDocFreq(Map<String, Integer> termDocFreqMap) {
+        List<Map.Entry<String, Integer>> sortedTerms = new ArrayList<>(termDocFreqMap.entrySet());
+        sortedTerms.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return sortedTerms;
+    }
+
+    //Resumen Space-Saving de la frecuencia de documento de los términos de un segmento
+    private static SpaceSavingSketch sketchLeaf(LeafReader leaf, String field, int capacity) throws IOException {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(capacity);
+        TermVectors termvectors = leaf.termVectors();
+        for (int docID = 0; docID < leaf.maxDoc(); docID++) {
+            Terms terms = termvectors.get(docID, field);
+            if (terms != null) {
+                TermsEnum termsEnum = terms.iterator();
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    sketch.add(term.utf8ToString());
+                }
+            }
+        }
+        return sketch;
+    }
+
+    //Construye un resumen por segmento en paralelo y los combina al final
+    static SpaceSavingSketch approximateDocFreqs(IndexReader reader, String field, int capacity, ForkJoinPool pool) throws IOException {
+        List<ForkJoinTask<SpaceSavingSketch>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            tasks.add(pool.submit(() -> sketchLeaf(context.reader(), field, capacity)));
+        }
+
+        SpaceSavingSketch merged = new SpaceSavingSketch(capacity);
+        for (ForkJoinTask<SpaceSavingSketch> task : tasks) {
+            try {
+                merged = merged.merge(task.get());
+            } catch (Exception e) {
+                throw new IOException("Error al calcular el resumen de un segmento", e);
+            }
+        }
+        return merged;
+    }
+
+    private static void writeApproximateTopTerms(SpaceSavingSketch sketch, int top, String outfilePath) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfilePath))) {
+
+            String header = "Los " + top + " términos con mayor frecuencia de documento (aproximado, " + sketch.getCapacity()
+                    + " contadores, error máximo " + sketch.getErrorBound() + " sobre " + sketch.getTotalCount() + " apariciones):\n";
+            System.out.println(header);
+            writer.write(header + "\n");
+            for (SpaceSavingSketch.Counter counter : sketch.top(top)) {
+                //La cuenta real está en [DF - error, DF]
+                String line = counter.getTerm() + ": DF~ " + counter.getCount() + ", error<= " + counter.getError()
+                        + ", DF>= " + (counter.getCount() - counter.getError());
+                writer.write(line + "\n");
+                System.out.println(line);
+            }
+            System.out.println("Los resultados se han guardado en: " + outfilePath);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void main( String[] args ) {
 
-        String usage = " -index INDEX_PATH -field FIELD -top n -outfile PATH";
+        String usage = " -index INDEX_PATH -field FIELD -top n -outfile PATH [-approx EPSILON] [-numThreads NUM_THREADS]";
         String indexPath = null;
         String field = null;
         int top = -1;
         String outfilePath = null;
+        double epsilon = -1; //error relativo del modo aproximado (desactivado por defecto)
+        final int numCores = Runtime.getRuntime().availableProcessors();
+        int numThreads = 0; //0 para usar todos los núcleos, 1 para el recorrido secuencial
 
 
 
@@ -62,6 +187,14 @@ public class TopTermsInField {
                 case "-outfile":
                     outfilePath = args[++i];
                     break;
+                case "-approx":
+                    epsilon = Double.parseDouble(args[++i]);
+                    validateApprox(epsilon);
+                    break;
+                case "-numThreads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    validateNumThreads(numThreads, numCores);
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
@@ -72,29 +205,37 @@ public class TopTermsInField {
             System.exit(1);
         }
 
+        if (numThreads == 0) {
+            numThreads = numCores;
+        }
+
         try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)))) {
 
-            Map<String, Integer> termDocFreqMap = new HashMap<>();
-
-            //iterar sobre todos los términos y calcular su frecuencia de documento
-            for (int docID = 0; docID < reader.maxDoc(); docID++) {
-                TermVectors termvectors = reader.termVectors();
-                Terms terms = termvectors.get(docID, field);
-                if (terms != null) {
-                    TermsEnum termsEnum = terms.iterator();
-                    BytesRef term;
-                    while ((term = termsEnum.next()) != null) {
-                        String termText = term.utf8ToString();
-                        //Guardo en el mapa el termino que encuentro y si no estaba consigo 0 y le añado 1, en otro caso añado uno mas al valor que tenia
-                        //es decir, añado uno más a la frecuencia de documentos que tenia
-                        termDocFreqMap.put(termText, termDocFreqMap.getOrDefault(termText, 0) + 1);
-                    }
+            //Modo aproximado: memoria acotada a 1/EPSILON contadores en vez de un mapa con todos los términos
+            if (epsilon > 0) {
+                ForkJoinPool pool = new ForkJoinPool(numThreads);
+                try {
+                    SpaceSavingSketch sketch = approximateDocFreqs(reader, field, SpaceSavingSketch.capacityForError(epsilon), pool);
+                    writeApproximateTopTerms(sketch, top, outfilePath);
+                } finally {
+                    pool.shutdown();
+                }
+                return;
+            }
+
+            Map<String, Integer> termDocFreqMap;
+            if (numThreads == 1) {
+                termDocFreqMap = countDocFreqs(reader, field);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(numThreads);
+                try {
+                    termDocFreqMap = countDocFreqs(reader, field, pool);
+                } finally {
+                    pool.shutdown();
                 }
             }
 
-            //ordenar los términos por su frecuencia de documento en orden descendente
-            List<Map.Entry<String, Integer>> sortedTerms = new ArrayList<>(termDocFreqMap.entrySet());
-            sortedTerms.sort(Map.Entry.<String, Integer>comparingByValue().reversed()); //Ordena el set por valor y se usa reversed para que sea en orden descendente
+            List<Map.Entry<String, Integer>> sortedTerms = sortByDocFreq(termDocFreqMap);
 
 
 
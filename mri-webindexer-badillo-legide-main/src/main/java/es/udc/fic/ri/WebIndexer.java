@@ -11,7 +11,9 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -22,6 +24,7 @@ import org.apache.lucene.analysis.es.SpanishAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 
 import org.apache.lucene.document.*;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
@@ -48,13 +51,15 @@ public class WebIndexer {
         private final String maxRedirects;
         private int numRedirects = 0;
         private final IndexWriter indexWriter;
+        private final boolean debug;
+        private final IndexingProgress progress;
         private void setNumRedirects(int i){
             this.numRedirects = i;
         }
 
 
 
-        public WorkerThread(final Path file, final String docsPath, final boolean h, final boolean titleTermVectors, final boolean bodyTermVectors, final Properties properties, final IndexWriter indexWriter) {
+        public WorkerThread(final Path file, final String docsPath, final boolean h, final boolean titleTermVectors, final boolean bodyTermVectors, final Properties properties, final IndexWriter indexWriter, final boolean debug, final IndexingProgress progress) {
 
             this.file = file;
             this.docsPath = docsPath;
@@ -65,6 +70,8 @@ public class WebIndexer {
             this.timeout = properties.getProperty("timeout", "10");
             this.maxRedirects = properties.getProperty("maxRedirects","5");
             this.indexWriter= indexWriter;
+            this.debug = debug;
+            this.progress = progress;
         }
 
         private void processURL(String url){
@@ -265,15 +272,18 @@ public class WebIndexer {
                 //Crear o actualizar
                 if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
                     //en este caso el indice es nuevo asi que lo creo añadiendo simplemente
-                    System.out.println("Añadiendo " + file);
+                    if (debug)
+                        System.out.println("Añadiendo " + file);
                     writer.addDocument(doc);
                 } else {
                     // Índice existente (puede haber una copia antigua de este documento ya indexada) por lo que
                     // utilizamos updateDocument en lugar de añadirlo para reemplazar la antigua si coincide
                     // con la ruta exacta, si está presente:
-                    System.out.println("Actualizando " + file);
+                    if (debug)
+                        System.out.println("Actualizando " + file);
                     writer.updateDocument(new Term("path", file.toString()), doc);
                 }
+                progress.documentIndexed(Files.size(loc));
             }
         }
 
@@ -321,6 +331,7 @@ public class WebIndexer {
                 while( (eachUrl = reader.readLine()) != null){ //Bucle que lee cada linea hasta que el archivo esté vacío
 
                     if(!validateOnlyDoms(eachUrl)){ //ignoro las urls que no terminen con la url requerida
+                        progress.urlProcessed();
                         continue;
                     }
 
@@ -333,6 +344,7 @@ public class WebIndexer {
                         processURL(eachUrl);
 
                     }
+                    progress.urlProcessed();
                 }
             }catch (IOException e){
                 e.printStackTrace();
@@ -368,6 +380,24 @@ public class WebIndexer {
             throw new IllegalArgumentException("El número de threads debe ser 0 para usar el número de núcleos de la máquina o positvo y como máximo " + numCores);
     }
 
+    private static void validateProgressInterval(int seconds){
+        if(seconds <= 0)
+            throw new IllegalArgumentException("El intervalo del informe de progreso (segundos) debe ser mayor que 0");
+    }
+
+    //Número de URLs de los ficheros .url, para estimar el tiempo restante
+    private static long countUrls(List<Path> urlFiles) throws IOException {
+        long count = 0;
+        for (Path file : urlFiles) {
+            try (BufferedReader reader = Files.newBufferedReader(file)) {
+                while (reader.readLine() != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     private static Properties loadConfiguration(){
         Properties properties = new Properties();
         String pathProperties = "src/test/resources/config.properties"; //ubicacion de properties.config
@@ -400,13 +430,16 @@ public class WebIndexer {
 
         String usage = " -index INDEX_PATH -docs DOCS_PATH [-create] [-numThreads NUM_THREADS] "
                         + "[-h] [-p] [-titleTermVectors] [-bodyTermVectors] "
-                        + "[-analyzer Analyzer]";
+                        + "[-analyzer Analyzer] [-debug] [-progress SECONDS] [-summary FILE.json]";
         String urls = "src/test/resources/urls"; //path en el que se encuentran los archivos .url con las urls a descargar, parsear e indexar
         String indexPath = null;
         String docsPath = null;
         boolean create = false;
         boolean p = false;
         boolean h = false;
+        boolean debug = false; //mensajes por cada página indexada
+        int progressInterval = 10; //segundos entre informes de progreso
+        String summaryPath = null;
         boolean titleTermVectors = false;
         boolean bodyTermVectors = false;
         int numThreads = 0;
@@ -414,7 +447,7 @@ public class WebIndexer {
         String analyzerChosen = null; //Analyzer (por defecto es StandardAnalyzer)
         //Lo guardo como string para despues ver cual es e inicializarlo
         Analyzer analyzer = null;
-        IndexWriter indexWriter = null;
+        IndexingProgress.CountingIndexWriter indexWriter = null;
         final int numCores = Runtime.getRuntime().availableProcessors();  //número de núcleos de mi ordenador
 
 
@@ -451,6 +484,16 @@ public class WebIndexer {
                 case "-analyzer":
                     analyzerChosen = args[++i];
                     break;
+                case "-debug":
+                    debug = true;
+                    break;
+                case "-progress":
+                    progressInterval = Integer.parseInt(args[++i]);
+                    validateProgressInterval(progressInterval);
+                    break;
+                case "-summary":
+                    summaryPath = args[++i];
+                    break;
                 default:
                     throw new IllegalArgumentException("Parámetro desconocido " + args[i]);
             }
@@ -487,14 +530,18 @@ public class WebIndexer {
             }else{
                 iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
             }
-            indexWriter = new IndexWriter(dir,iwc);
+            indexWriter = new IndexingProgress.CountingIndexWriter(dir,iwc);
 
         }catch (IOException e){
+            //sin writer no hay nada que indexar ni de lo que informar
             e.printStackTrace();
+            System.exit(-1);
         }
 
 
 
+        //Ficheros .url a procesar; se recogen antes de empezar para saber cuántas URLs hay en total
+        List<Path> urlFiles = new ArrayList<>();
         //Creo un directory stream para mirar cada contenido dentro de un directorio
         try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(urls))) {
 
@@ -505,24 +552,14 @@ public class WebIndexer {
                 if(!Files.isReadable(path)){
                     System.out.println("El archivo o directorio no es legible");
                 }else if (Files.isRegularFile(path)) {
-                    //final Runnable worker = new WorkerThread(path, docsPath, create, h, titleTermVectors, bodyTermVectors, analyzerChosen, indexPath, properties);
-                    final Runnable worker = new WorkerThread(path, docsPath, h, titleTermVectors, bodyTermVectors, properties, indexWriter);
-
-                    //Creo el hilo y lo mando al pool para que se ejecute eventualmente
-                    executor.execute(worker);
+                    urlFiles.add(path);
                 }else{ //Recorrer subdirectorios recursivamente
                     try {
-                        String finalDocsPath = docsPath;
-                        boolean finalH = h;
-                        boolean finalTitleTermVectors = titleTermVectors;
-                        boolean finalBodyTermVectors = bodyTermVectors;
-                        IndexWriter finalIndexWriter = indexWriter;
                         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
                             @Override
                             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                                 if (!Files.isDirectory(file) && Files.isRegularFile(file)) {
-                                    final Runnable worker = new WorkerThread(file, finalDocsPath, finalH, finalTitleTermVectors, finalBodyTermVectors, properties, finalIndexWriter);
-                                    executor.execute(worker);
+                                    urlFiles.add(file);
                                 }
                                 return FileVisitResult.CONTINUE; //Continua la busqueda
                             }
@@ -546,6 +583,14 @@ public class WebIndexer {
             System.exit(-1);
         }
 
+        //Informe periódico de progreso en lugar de un mensaje por página (salvo con -debug)
+        IndexingProgress progress = new IndexingProgress(indexWriter, countUrls(urlFiles));
+        progress.start(progressInterval);
+        for (Path urlFile : urlFiles) {
+            //Creo el hilo y lo mando al pool para que se ejecute eventualmente
+            executor.execute(new WorkerThread(urlFile, docsPath, h, titleTermVectors, bodyTermVectors, properties, indexWriter, debug, progress));
+        }
+
         //Cierro el pool para no aceptar mas hilos y los que quedan se ejecutaran eventualmente
         executor.shutdown();
 
@@ -558,8 +603,13 @@ public class WebIndexer {
         }
 
         //LLAMAR A QUE SE CIERRE EL WRITER
-        if(indexWriter != null)
-            indexWriter.close(); //esto mete lo de IOException en el main
+        indexWriter.close(); //esto mete lo de IOException en el main
+
+        //El informe final incluye el flush y los merges del cierre
+        progress.stop();
+        System.out.println(JsonMapper.builder().build().writeValueAsString(progress.summary()));
+        if(summaryPath != null)
+            progress.writeSummary(Paths.get(summaryPath));
 
         //Fin del trabajo de la aplicación (ya han hecho todos los hilos su trabajo)
         Date end = new Date();
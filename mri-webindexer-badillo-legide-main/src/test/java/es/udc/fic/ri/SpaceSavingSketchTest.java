@@ -0,0 +1,154 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Garantías de Space-Saving en TopTermsInField -approx: todo término con frecuencia real mayor que
+ * epsilon * N aparece en el resumen y ninguna cuenta estimada sobreestima la real en más de epsilon * N,
+ * también tras combinar los resúmenes de varios segmentos.
+ */
+public class SpaceSavingSketchTest
+{
+    private static Directory directory;
+    private static IndexReader reader;
+    private static ForkJoinPool pool;
+    private static Map<String, Integer> exact;
+
+    @BeforeClass
+    public static void createMultiSegmentIndex() throws IOException
+    {
+        directory = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setMergePolicy(NoMergePolicy.INSTANCE); //sin merges para conservar varios segmentos
+
+        FieldType bodyFieldType = new FieldType();
+        bodyFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        bodyFieldType.setStoreTermVectors(true);
+
+        Random random = new Random(7);
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            for (int docID = 0; docID < 1500; docID++) {
+                StringBuilder body = new StringBuilder();
+                for (int i = 0; i < 20; i++) {
+                    //distribución muy sesgada: pocos términos frecuentes y una cola larga de términos raros
+                    body.append("term").append((int) (Math.pow(random.nextDouble(), 4) * 3000)).append(' ');
+                }
+                //la mitad de los segmentos tiene además sus propios términos frecuentes
+                if ((docID / 100) % 2 == 0) {
+                    body.append("segment").append(docID / 100).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new Field("body", body.toString(), bodyFieldType));
+                writer.addDocument(doc);
+                if (docID % 100 == 99) {
+                    writer.commit(); //un segmento nuevo cada 100 documentos
+                }
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+        exact = TopTermsInField.countDocFreqs(reader, "body");
+    }
+
+    @AfterClass
+    public static void close() throws IOException
+    {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    private static void assertGuarantees(SpaceSavingSketch sketch, double epsilon, Map<String, Integer> exact)
+    {
+        long total = exact.values().stream().mapToLong(Integer::longValue).sum();
+        assertEquals(total, sketch.getTotalCount());
+        double maxError = epsilon * total;
+
+        Map<String, SpaceSavingSketch.Counter> reported = new HashMap<>();
+        for (SpaceSavingSketch.Counter counter : sketch.top(sketch.getCapacity())) {
+            reported.put(counter.getTerm(), counter);
+        }
+        assertTrue(reported.size() <= sketch.getCapacity());
+
+        for (Map.Entry<String, Integer> term : exact.entrySet()) {
+            if (term.getValue() > maxError) {
+                assertTrue("Falta el término frecuente " + term.getKey(), reported.containsKey(term.getKey()));
+            }
+        }
+        for (SpaceSavingSketch.Counter counter : reported.values()) {
+            long real = exact.getOrDefault(counter.getTerm(), 0);
+            assertTrue("Cuenta menor que la real para " + counter.getTerm(), counter.getCount() >= real);
+            assertTrue("Sobreestimación mayor que epsilon * N para " + counter.getTerm(), counter.getCount() - real <= maxError);
+            assertTrue("Cota de error del contador incorrecta para " + counter.getTerm(), counter.getCount() - counter.getError() <= real);
+        }
+    }
+
+    @Test
+    public void indexHasSeveralSegments()
+    {
+        assertTrue(reader.leaves().size() > 1);
+    }
+
+    @Test
+    public void sketchIsSmallerThanVocabulary()
+    {
+        //si no, el resumen sería exacto y no probaría nada
+        assertTrue(exact.size() > SpaceSavingSketch.capacityForError(0.005));
+    }
+
+    @Test
+    public void approximateDocFreqsKeepsGuaranteesAcrossSegments() throws IOException
+    {
+        for (double epsilon : new double[]{0.05, 0.01, 0.005}) {
+            SpaceSavingSketch sketch = TopTermsInField.approximateDocFreqs(reader, "body", SpaceSavingSketch.capacityForError(epsilon), pool);
+            assertGuarantees(sketch, epsilon, exact);
+        }
+    }
+
+    @Test
+    public void singleStreamKeepsGuarantees()
+    {
+        double epsilon = 0.01;
+        SpaceSavingSketch sketch = new SpaceSavingSketch(SpaceSavingSketch.capacityForError(epsilon));
+        Map<String, Integer> counts = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 50000; i++) {
+            String term = "t" + (int) (Math.pow(random.nextDouble(), 5) * 5000);
+            sketch.add(term);
+            counts.merge(term, 1, Integer::sum);
+        }
+        assertGuarantees(sketch, epsilon, counts);
+    }
+
+    @Test
+    public void mostFrequentTermIsFirst() throws IOException
+    {
+        SpaceSavingSketch sketch = TopTermsInField.approximateDocFreqs(reader, "body", SpaceSavingSketch.capacityForError(0.01), pool);
+        List<Map.Entry<String, Integer>> sorted = TopTermsInField.sortByDocFreq(exact);
+        assertEquals(sorted.get(0).getKey(), sketch.top(1).get(0).getTerm());
+    }
+}
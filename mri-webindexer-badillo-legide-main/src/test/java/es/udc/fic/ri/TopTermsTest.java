@@ -0,0 +1,111 @@
+package es.udc.fic.ri;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * El recorrido por segmentos en paralelo de TopTermsInField y TopTermsInDoc
+ * debe dar los mismos resultados que el recorrido secuencial.
+ */
+public class TopTermsTest
+{
+    private static Directory directory;
+    private static IndexReader reader;
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createMultiSegmentIndex() throws IOException
+    {
+        directory = new ByteBuffersDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setMergePolicy(NoMergePolicy.INSTANCE); //sin merges para conservar varios segmentos
+
+        FieldType bodyFieldType = new FieldType();
+        bodyFieldType.setStored(true);
+        bodyFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        bodyFieldType.setStoreTermVectors(true);
+
+        Random random = new Random(42);
+        try (IndexWriter writer = new IndexWriter(directory, iwc)) {
+            for (int docID = 0; docID < 200; docID++) {
+                StringBuilder body = new StringBuilder();
+                for (int i = 0; i < 30; i++) {
+                    //distribución sesgada para que haya términos frecuentes y empates
+                    body.append("term").append((int) (Math.pow(random.nextDouble(), 3) * 100)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new Field("body", body.toString(), bodyFieldType));
+                writer.addDocument(doc);
+                if (docID % 25 == 24) {
+                    writer.commit(); //un segmento nuevo cada 25 documentos
+                }
+            }
+            writer.deleteDocuments(new Term("body", "term99"));
+        }
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void close() throws IOException
+    {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void indexHasSeveralSegments()
+    {
+        assertTrue(reader.leaves().size() > 1);
+    }
+
+    @Test
+    public void topTermsInFieldParallelMatchesSequential() throws IOException
+    {
+        Map<String, Integer> sequential = TopTermsInField.countDocFreqs(reader, "body");
+        Map<String, Integer> parallel = TopTermsInField.countDocFreqs(reader, "body", pool);
+
+        assertEquals(sequential, parallel);
+        assertEquals(TopTermsInField.sortByDocFreq(sequential), TopTermsInField.sortByDocFreq(parallel));
+    }
+
+    @Test
+    public void topTermsInDocParallelMatchesSequential() throws IOException
+    {
+        List<BytesRef> terms = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            terms.add(new BytesRef("term" + i));
+        }
+        terms.add(new BytesRef("missing"));
+
+        assertArrayEquals(TopTermsInDoc.docFreqs(reader, "body", terms),
+                TopTermsInDoc.docFreqs(reader, "body", terms, pool));
+    }
+}